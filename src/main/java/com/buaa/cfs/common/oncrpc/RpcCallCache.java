@@ -12,13 +12,18 @@
  */
 package com.buaa.cfs.common.oncrpc;
 
+import com.buaa.cfs.utils.Time;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is used for handling the duplicate <em>non-idempotenty</em> Rpc
@@ -32,89 +37,124 @@ import java.util.Map.Entry;
  * from the cache is sent back to the client.</li>
  * </ul>
  * <br>
- * A request is identified by the client ID (address of the client) and
- * transaction ID (xid) from the Rpc call.
- *
+ * A request is identified by the client ID (address of the client), the
+ * transaction ID (xid) and the procedure of the Rpc call.
+ * <p>
+ * The cache is split into stripes by request, each with its own lock, hash
+ * table and list of entries in insertion order, so concurrent calls rarely
+ * contend. Each stripe gets an equal share of the limits:
+ * <ul>
+ * <li>the number of entries and the bytes of cached responses. The oldest
+ * entries are evicted first when either is exceeded.</li>
+ * <li>the number of entries of a single client. A client over its share
+ * evicts its own oldest entry instead of the oldest entry of the stripe, so a
+ * noisy client cannot flush the entries of everyone else.</li>
+ * </ul>
+ * Entries older than the expiry time are treated as absent and dropped.
  */
 public class RpcCallCache {
 
     public static class CacheEntry {
-        private RpcResponse response; // null if no response has been sent
+        private final InetAddress clientId;
+        private final int xid;
+        private final int procedure;
+        private final long hash;
+        private final long createTime;
+        private volatile RpcResponse response; // null if no response has been sent
+        private int size;
 
-        public CacheEntry() {
-            response = null;
-        }
+        /** Next entry in the same hash bucket */
+        private CacheEntry next;
+        /** Neighbours in insertion order, prev is the older one */
+        private CacheEntry prev;
+        private CacheEntry newer;
 
-        public boolean isInProgress() {
-            return response == null;
+        private CacheEntry(InetAddress clientId, int xid, int procedure,
+                long hash, long createTime) {
+            this.clientId = clientId;
+            this.xid = xid;
+            this.procedure = procedure;
+            this.hash = hash;
+            this.createTime = createTime;
         }
 
-        public boolean isCompleted() {
-            return response != null;
+        public InetAddress getClientId() {
+            return clientId;
         }
 
-        public RpcResponse getResponse() {
-            return response;
+        public int getXid() {
+            return xid;
         }
 
-        public void setResponse(RpcResponse response) {
-            this.response = response;
+        public int getProcedure() {
+            return procedure;
         }
-    }
-
-    /**
-     * Call that is used to track a client in the {@link RpcCallCache}
-     */
-    public static class ClientRequest {
-        protected final InetAddress clientId;
-        protected final int xid;
 
-        public InetAddress getClientId() {
-            return clientId;
+        public boolean isInProgress() {
+            return response == null;
         }
 
-        public ClientRequest(InetAddress clientId, int xid) {
-            this.clientId = clientId;
-            this.xid = xid;
+        public boolean isCompleted() {
+            return response != null;
         }
 
-        @Override
-        public int hashCode() {
-            return xid + clientId.hashCode() * 31;
+        public RpcResponse getResponse() {
+            return response;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null || !(obj instanceof ClientRequest)) {
-                return false;
-            }
-            ClientRequest other = (ClientRequest) obj;
-            return clientId.equals(other.clientId) && (xid == other.xid);
+        private boolean matches(long hash, InetAddress clientId, int xid,
+                int procedure) {
+            return this.hash == hash && this.xid == xid
+                    && this.procedure == procedure && this.clientId.equals(clientId);
         }
     }
 
+    private static final int MAX_STRIPES = 16;
+
     private final String program;
+    private final Stripe[] stripes;
+    private final long expiryMillis;
 
-    private final Map<ClientRequest, CacheEntry> map;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong inProgressHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
 
     public RpcCallCache(final String program, final int maxEntries) {
+        this(program, maxEntries, Long.MAX_VALUE, 0, maxEntries);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached requests
+     * @param maxBytes maximum bytes of cached responses
+     * @param expiryMillis time after which an entry is dropped, 0 for never
+     * @param maxEntriesPerClient maximum number of cached requests of a client
+     */
+    public RpcCallCache(final String program, final int maxEntries,
+            final long maxBytes, final long expiryMillis,
+            final int maxEntriesPerClient) {
         if (maxEntries <= 0) {
             throw new IllegalArgumentException("Cache size is " + maxEntries
                     + ". Should be > 0");
         }
+        if (maxBytes <= 0 || maxEntriesPerClient <= 0) {
+            throw new IllegalArgumentException("Cache byte limit " + maxBytes
+                    + " and per client limit " + maxEntriesPerClient
+                    + " should be > 0");
+        }
         this.program = program;
-        map = new LinkedHashMap<ClientRequest, CacheEntry>() {
-            private static final long serialVersionUID = 1L;
+        this.expiryMillis = expiryMillis;
 
-            @Override
-            protected boolean removeEldestEntry(
-                    Entry<ClientRequest, CacheEntry> eldest) {
-                return RpcCallCache.this.size() > maxEntries;
-            }
-        };
+        int n = 1;
+        while (n < MAX_STRIPES && n * 2 <= maxEntries) {
+            n *= 2;
+        }
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe((maxEntries + n - 1) / n,
+                    maxBytes == Long.MAX_VALUE ? maxBytes : Math.max(1, maxBytes / n),
+                    (maxEntriesPerClient + n - 1) / n);
+        }
     }
 
     /** Return the program name */
@@ -122,44 +162,261 @@ public class RpcCallCache {
         return program;
     }
 
-    /** Mark a request as completed and add corresponding response to the cache */
-    public void callCompleted(InetAddress clientId, int xid, RpcResponse response) {
-        ClientRequest req = new ClientRequest(clientId, xid);
-        CacheEntry e;
-        synchronized (map) {
-            e = map.get(req);
-        }
-        e.response = response;
+    /**
+     * Mark a request as completed and add corresponding response to the cache.
+     * Nothing is cached if the entry has been evicted while in progress.
+     */
+    public void callCompleted(InetAddress clientId, int xid, int procedure,
+            RpcResponse response) {
+        long hash = hash(clientId, xid, procedure);
+        stripeFor(hash).complete(hash, clientId, xid, procedure, response);
     }
 
     /**
      * Check the cache for an entry. If it does not exist, add the request
      * as in progress.
      */
-    public CacheEntry checkOrAddToCache(InetAddress clientId, int xid) {
-        ClientRequest req = new ClientRequest(clientId, xid);
-        CacheEntry e;
-        synchronized (map) {
-            e = map.get(req);
-            if (e == null) {
-                // Add an inprogress cache entry
-                map.put(req, new CacheEntry());
-            }
+    public CacheEntry checkOrAddToCache(InetAddress clientId, int xid,
+            int procedure) {
+        long hash = hash(clientId, xid, procedure);
+        CacheEntry e = stripeFor(hash).getOrAdd(hash, clientId, xid, procedure,
+                Time.monotonicNow());
+        if (e == null) {
+            misses.incrementAndGet();
+        } else if (e.isCompleted()) {
+            hits.incrementAndGet();
+        } else {
+            inProgressHits.incrementAndGet();
         }
         return e;
     }
 
     /** Return number of cached entries */
     public int size() {
-        return map.size();
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.count;
+            }
+        }
+        return size;
+    }
+
+    /** Return bytes of cached responses */
+    public long getCachedBytes() {
+        long bytes = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                bytes += s.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /** Retransmitted requests answered with a cached response */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Retransmitted requests ignored because the call is in progress */
+    public long getInProgressHits() {
+        return inProgressHits.get();
+    }
+
+    /** Requests seen for the first time */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Entries evicted or expired */
+    public long getEvictions() {
+        return evictions.get();
     }
 
     /**
-     * Iterator to the cache entries
+     * Iterator to a snapshot of the cache entries, oldest first in each stripe
      * @return iterator
      */
     @VisibleForTesting
-    public Iterator<Entry<ClientRequest, CacheEntry>> iterator() {
-        return map.entrySet().iterator();
+    public Iterator<CacheEntry> iterator() {
+        List<CacheEntry> all = new ArrayList<CacheEntry>();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (CacheEntry e = s.oldest; e != null; e = e.newer) {
+                    all.add(e);
+                }
+            }
+        }
+        return all.iterator();
+    }
+
+    private Stripe stripeFor(long hash) {
+        return stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+    }
+
+    private static long hash(InetAddress clientId, int xid, int procedure) {
+        int addr = clientId instanceof Inet4Address ? byteArrayToInt(clientId
+                .getAddress()) : Arrays.hashCode(clientId.getAddress());
+        long h = ((long) addr << 32) ^ (xid & 0xffffffffL) ^ ((long) procedure << 16);
+        // Spread the bits so both halves depend on every input
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int byteArrayToInt(byte[] b) {
+        return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8
+                | (b[3] & 0xff);
+    }
+
+    private boolean isExpired(CacheEntry e, long now) {
+        return expiryMillis > 0 && now - e.createTime > expiryMillis;
+    }
+
+    /** One lock's worth of the cache */
+    private final class Stripe {
+        private final int maxEntries;
+        private final long maxBytes;
+        private final int maxEntriesPerClient;
+        private final CacheEntry[] table;
+        private final Map<InetAddress, int[]> clientCounts =
+                new HashMap<InetAddress, int[]>();
+        private CacheEntry oldest;
+        private CacheEntry newest;
+        private int count;
+        private long bytes;
+
+        Stripe(int maxEntries, long maxBytes, int maxEntriesPerClient) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.maxEntriesPerClient = maxEntriesPerClient;
+            int capacity = 1;
+            while (capacity < maxEntries * 2) {
+                capacity *= 2;
+            }
+            table = new CacheEntry[capacity];
+        }
+
+        synchronized CacheEntry getOrAdd(long hash, InetAddress clientId,
+                int xid, int procedure, long now) {
+            expire(now);
+            CacheEntry e = find(hash, clientId, xid, procedure);
+            if (e != null) {
+                return e;
+            }
+
+            int[] clientCount = clientCounts.get(clientId);
+            if (clientCount != null && clientCount[0] >= maxEntriesPerClient) {
+                evictOldestOf(clientId);
+            }
+            if (count >= maxEntries) {
+                evict(oldest);
+            }
+
+            e = new CacheEntry(clientId, xid, procedure, hash, now);
+            int i = index(hash);
+            e.next = table[i];
+            table[i] = e;
+            e.prev = newest;
+            if (newest != null) {
+                newest.newer = e;
+            } else {
+                oldest = e;
+            }
+            newest = e;
+            count++;
+            clientCount = clientCounts.get(clientId);
+            if (clientCount == null) {
+                clientCount = new int[1];
+                clientCounts.put(clientId, clientCount);
+            }
+            clientCount[0]++;
+            return null;
+        }
+
+        synchronized void complete(long hash, InetAddress clientId, int xid,
+                int procedure, RpcResponse response) {
+            CacheEntry e = find(hash, clientId, xid, procedure);
+            if (e == null) {
+                return;
+            }
+            bytes -= e.size;
+            e.size = response.data().readableBytes();
+            e.response = response;
+            bytes += e.size;
+            // Entries in progress hold no bytes, evicting them would only let
+            // their retransmissions run again
+            CacheEntry victim = oldest;
+            while (bytes > maxBytes && victim != null) {
+                CacheEntry newer = victim.newer;
+                if (victim.isCompleted()) {
+                    evict(victim);
+                }
+                victim = newer;
+            }
+        }
+
+        private CacheEntry find(long hash, InetAddress clientId, int xid,
+                int procedure) {
+            for (CacheEntry e = table[index(hash)]; e != null; e = e.next) {
+                if (e.matches(hash, clientId, xid, procedure)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        private int index(long hash) {
+            return (int) hash & (table.length - 1);
+        }
+
+        private void expire(long now) {
+            while (oldest != null && isExpired(oldest, now)) {
+                evict(oldest);
+            }
+        }
+
+        private void evictOldestOf(InetAddress clientId) {
+            for (CacheEntry e = oldest; e != null; e = e.newer) {
+                if (e.clientId.equals(clientId)) {
+                    evict(e);
+                    return;
+                }
+            }
+        }
+
+        private void evict(CacheEntry e) {
+            int i = index(e.hash);
+            if (table[i] == e) {
+                table[i] = e.next;
+            } else {
+                CacheEntry p = table[i];
+                while (p.next != e) {
+                    p = p.next;
+                }
+                p.next = e.next;
+            }
+
+            if (e.prev != null) {
+                e.prev.newer = e.newer;
+            } else {
+                oldest = e.newer;
+            }
+            if (e.newer != null) {
+                e.newer.prev = e.prev;
+            } else {
+                newest = e.prev;
+            }
+            e.next = e.prev = e.newer = null;
+
+            count--;
+            bytes -= e.size;
+            int[] clientCount = clientCounts.get(e.clientId);
+            if (--clientCount[0] == 0) {
+                clientCounts.remove(e.clientId);
+            }
+            evictions.incrementAndGet();
+        }
     }
 }
@@ -13,6 +13,7 @@
 package com.buaa.cfs.common.oncrpc;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFutureListener;
 
 import java.net.SocketAddress;
 
@@ -24,10 +25,23 @@ import java.net.SocketAddress;
 public class RpcResponse {
     private final ChannelBuffer data;
     private final SocketAddress remoteAddress;
+    private final ChannelFutureListener writeListener;
 
     public RpcResponse(ChannelBuffer data, SocketAddress remoteAddress) {
+        this(data, remoteAddress, null);
+    }
+
+    /**
+     * @param writeListener
+     *          notified once data has been written to the channel, e.g. to
+     *          recycle the buffer backing it. Such a response can only be sent
+     *          once, so it must not be kept in the duplicate request cache.
+     */
+    public RpcResponse(ChannelBuffer data, SocketAddress remoteAddress,
+            ChannelFutureListener writeListener) {
         this.data = data;
         this.remoteAddress = remoteAddress;
+        this.writeListener = writeListener;
     }
 
     public ChannelBuffer data() {
@@ -37,4 +51,9 @@ public class RpcResponse {
     public SocketAddress remoteAddress() {
         return remoteAddress;
     }
+
+    /** @return the listener of the write, null if there is none */
+    public ChannelFutureListener writeListener() {
+        return writeListener;
+    }
 }
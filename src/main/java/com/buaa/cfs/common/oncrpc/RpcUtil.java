@@ -17,9 +17,18 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.jboss.netty.util.ObjectSizeEstimator;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public final class RpcUtil {
     /**
@@ -41,6 +50,64 @@ public final class RpcUtil {
         return new RpcFrameDecoder();
     }
 
+    /**
+     * Construct the stage which moves RPC program execution off the I/O worker
+     * threads. The executor is bounded by the estimated size of the queued
+     * calls: when either limit is reached, the I/O thread submitting a new call
+     * blocks until enough queued calls have been handled, which stops reading
+     * from the sockets.
+     *
+     * @param name prefix of the handler thread names
+     * @param threads number of handler threads
+     * @param maxChannelMemory max bytes of queued calls per connection, 0 to
+     *          disable the limit
+     * @param maxTotalMemory max bytes of queued calls in total, 0 to disable
+     *          the limit
+     * @param keepAliveSeconds time for an idle handler thread to stay alive
+     * @param ordered if true, calls from one connection are executed in order,
+     *          one at a time
+     */
+    public static ExecutionHandler constructExecutionHandler(String name,
+            int threads, long maxChannelMemory, long maxTotalMemory,
+            long keepAliveSeconds, boolean ordered) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(name + "-handler-%d").build();
+        MemoryAwareThreadPoolExecutor executor;
+        if (ordered) {
+            executor = new OrderedMemoryAwareThreadPoolExecutor(threads,
+                    maxChannelMemory, maxTotalMemory, keepAliveSeconds,
+                    TimeUnit.SECONDS, RPC_CALL_SIZE_ESTIMATOR, threadFactory);
+        } else {
+            executor = new MemoryAwareThreadPoolExecutor(threads,
+                    maxChannelMemory, maxTotalMemory, keepAliveSeconds,
+                    TimeUnit.SECONDS, RPC_CALL_SIZE_ESTIMATOR, threadFactory);
+        }
+        return new ExecutionHandler(executor);
+    }
+
+    /**
+     * Estimates queued calls by the size of their parameters, which dominates
+     * for large requests such as WRITE. Other events fall back to the default
+     * estimation.
+     */
+    private static final ObjectSizeEstimator RPC_CALL_SIZE_ESTIMATOR = new ObjectSizeEstimator() {
+        private static final int RPC_INFO_OVERHEAD = 256;
+        private final ObjectSizeEstimator defaultEstimator = new DefaultObjectSizeEstimator();
+
+        @Override
+        public int estimateSize(Object o) {
+            if (o instanceof ChannelEventRunnable) {
+                ChannelEvent e = ((ChannelEventRunnable) o).getEvent();
+                if (e instanceof MessageEvent
+                        && ((MessageEvent) e).getMessage() instanceof RpcInfo) {
+                    RpcInfo info = (RpcInfo) ((MessageEvent) e).getMessage();
+                    return RPC_INFO_OVERHEAD + info.data().readableBytes();
+                }
+            }
+            return defaultEstimator.estimateSize(o);
+        }
+    };
+
     public static final SimpleChannelUpstreamHandler STAGE_RPC_MESSAGE_PARSER = new RpcMessageParserStage();
     public static final SimpleChannelUpstreamHandler STAGE_RPC_TCP_RESPONSE = new RpcTcpResponseStage();
     public static final SimpleChannelUpstreamHandler STAGE_RPC_UDP_RESPONSE = new RpcUdpResponseStage();
@@ -105,7 +172,11 @@ public final class RpcUtil {
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
                 throws Exception {
             ChannelBuffer buf = (ChannelBuffer) e.getMessage();
-            ByteBuffer b = buf.toByteBuffer().asReadOnlyBuffer();
+            // Not wrapped as read-only, so the parameters handed over in RpcInfo
+            // stay array-backed and can be decoded without being copied again.
+            // A frame spanning several socket reads is merged into one buffer
+            // here; a single-read frame is used as is.
+            ByteBuffer b = buf.toByteBuffer();
             XDR in = new XDR(b, XDR.State.READING);
 
             RpcInfo info = null;
@@ -138,7 +209,10 @@ public final class RpcUtil {
             byte[] fragmentHeader = XDR.recordMark(r.data().readableBytes(), true);
             ChannelBuffer header = ChannelBuffers.wrappedBuffer(fragmentHeader);
             ChannelBuffer d = ChannelBuffers.wrappedBuffer(header, r.data());
-            e.getChannel().write(d);
+            ChannelFuture f = e.getChannel().write(d);
+            if (r.writeListener() != null) {
+                f.addListener(r.writeListener());
+            }
         }
     }
 
@@ -153,7 +227,10 @@ public final class RpcUtil {
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
                 throws Exception {
             RpcResponse r = (RpcResponse) e.getMessage();
-            e.getChannel().write(r.data(), r.remoteAddress());
+            ChannelFuture f = e.getChannel().write(r.data(), r.remoteAddress());
+            if (r.writeListener() != null) {
+                f.addListener(r.writeListener());
+            }
         }
     }
 }
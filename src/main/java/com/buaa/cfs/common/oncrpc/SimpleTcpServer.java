@@ -17,6 +17,7 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 import java.net.InetSocketAddress;
 import java.util.concurrent.Executors;
@@ -35,15 +36,34 @@ public class SimpleTcpServer {
     /** The maximum number of I/O worker threads */
     protected final int workerCount;
 
+    /**
+     * The stage handing decoded RPC calls over to handler threads. Null means
+     * the RPC program runs on the I/O worker threads.
+     */
+    protected final ExecutionHandler executionHandler;
+
     /**
      * @param port TCP port where to start the server at
      * @param program RPC program corresponding to the server
      * @param workercount Number of worker threads
      */
     public SimpleTcpServer(int port, RpcProgram program, int workercount) {
+        this(port, program, workercount, null);
+    }
+
+    /**
+     * @param port TCP port where to start the server at
+     * @param program RPC program corresponding to the server
+     * @param workercount Number of worker threads
+     * @param executionHandler if not null, the RPC program is executed by this
+     *          handler's executor instead of the I/O worker threads
+     */
+    public SimpleTcpServer(int port, RpcProgram program, int workercount,
+            ExecutionHandler executionHandler) {
         this.port = port;
         this.rpcProgram = program;
         this.workerCount = workercount;
+        this.executionHandler = executionHandler;
     }
 
     public void run() {
@@ -64,9 +84,14 @@ public class SimpleTcpServer {
 
             @Override
             public ChannelPipeline getPipeline() throws Exception {
+                if (executionHandler == null) {
+                    return Channels.pipeline(RpcUtil.constructRpcFrameDecoder(),
+                            RpcUtil.STAGE_RPC_MESSAGE_PARSER, rpcProgram,
+                            RpcUtil.STAGE_RPC_TCP_RESPONSE);
+                }
                 return Channels.pipeline(RpcUtil.constructRpcFrameDecoder(),
-                        RpcUtil.STAGE_RPC_MESSAGE_PARSER, rpcProgram,
-                        RpcUtil.STAGE_RPC_TCP_RESPONSE);
+                        RpcUtil.STAGE_RPC_MESSAGE_PARSER, executionHandler,
+                        rpcProgram, RpcUtil.STAGE_RPC_TCP_RESPONSE);
             }
         });
         server.setOption("child.tcpNoDelay", true);
@@ -78,7 +103,9 @@ public class SimpleTcpServer {
         boundPort = socketAddr.getPort();
 
         LOG.info("Started listening to TCP requests at port " + boundPort + " for "
-                + rpcProgram + " with workerCount " + workerCount);
+                + rpcProgram + " with workerCount " + workerCount
+                + (executionHandler == null ? " on I/O threads"
+                : " with handler execution stage"));
     }
 
     // boundPort will be set only after server starts
@@ -93,5 +120,8 @@ public class SimpleTcpServer {
         if (server != null) {
             server.releaseExternalResources();
         }
+        if (executionHandler != null) {
+            executionHandler.releaseExternalResources();
+        }
     }
 }
@@ -18,6 +18,7 @@ import org.apache.commons.io.Charsets;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 /**
@@ -78,6 +79,20 @@ public final class XDR {
         this(ByteBuffer.wrap(src).asReadOnlyBuffer(), State.READING);
     }
 
+    /**
+     * Wraps the readable bytes of a ChannelBuffer as an XDR message for reading.
+     * When the ChannelBuffer is backed by one contiguous region, which is the
+     * common case for a decoded RPC frame, the XDR shares its content and no
+     * copy is involved. Opaque data read by {@link #readFixedOpaqueBuffer(int)}
+     * is then a view of the network buffer.
+     *
+     * @param src
+     *          the ChannelBuffer to be wrapped. Its reader index is not changed.
+     */
+    public XDR(ChannelBuffer src) {
+        this(src.toByteBuffer().slice(), State.READING);
+    }
+
     public XDR asReadOnlyWrap() {
         ByteBuffer b = buf.asReadOnlyBuffer();
         if (state == State.WRITING) {
@@ -137,6 +152,54 @@ public final class XDR {
         return r;
     }
 
+    /**
+     * Read a fixed-length opaque as a view of the underlying buffer instead of a
+     * copy. The returned buffer starts at position 0 and has its limit set to
+     * size. It shares content with this XDR message, so it must not be modified
+     * and remains valid as long as the message buffer is not reused.
+     */
+    public ByteBuffer readFixedOpaqueBuffer(int size) {
+        Preconditions.checkState(state == State.READING);
+        if (size > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer r = buf.slice();
+        r.limit(size);
+        buf.position(buf.position() + size);
+        alignPosition();
+        return r;
+    }
+
+    /**
+     * Write the first length bytes from the position of src. The position of
+     * src is not changed.
+     */
+    public void writeFixedOpaque(ByteBuffer src, int length) {
+        ensureFreeSpace(alignUp(length));
+        ByteBuffer d = src.duplicate();
+        d.limit(d.position() + length);
+        buf.put(d);
+        writePadding();
+    }
+
+    /**
+     * Wrap the first length bytes from the position of src, followed by the
+     * XDR padding, as a ChannelBuffer. The bytes are not copied, so src must
+     * remain unmodified until the returned buffer has been written out. This is
+     * the counterpart of {@link #writeFixedOpaque(ByteBuffer, int)} for bulk
+     * data that is appended after the XDR message.
+     */
+    public static ChannelBuffer wrapFixedOpaque(ByteBuffer src, int length) {
+        ByteBuffer d = src.duplicate();
+        d.limit(d.position() + length);
+        int p = pad(length);
+        if (p == 0) {
+            return ChannelBuffers.wrappedBuffer(d);
+        }
+        return ChannelBuffers.wrappedBuffer(ChannelBuffers.wrappedBuffer(d),
+                ChannelBuffers.wrappedBuffer(PADDING_BYTES, 0, p));
+    }
+
     public void writeFixedOpaque(byte[] src, int length) {
         ensureFreeSpace(alignUp(length));
         buf.put(src, 0, length);
@@ -174,11 +237,11 @@ public final class XDR {
         buf.put(PADDING_BYTES, 0, p);
     }
 
-    private int alignUp(int length) {
+    private static int alignUp(int length) {
         return length + pad(length);
     }
 
-    private int pad(int length) {
+    private static int pad(int length) {
         switch (length % 4) {
             case 1:
                 return 3;
@@ -30,6 +30,13 @@ public class NfsConfigKeys {
   public static final boolean DFS_NFS_FILE_DUMP_DEFAULT = true;
   public static final String DFS_NFS_FILE_DUMP_DIR_KEY = "nfs.file.dump.dir";
   public static final String DFS_NFS_FILE_DUMP_DIR_DEFAULT = "/tmp/.hdfs-nfs";
+  /*
+   * Size of the segment files of the spill log the non-sequential writes of
+   * all the open files are dumped to. A write larger than a segment can't be
+   * dumped.
+   */
+  public static final String DFS_NFS_SPILL_SEGMENT_SIZE_KEY = "nfs.spill.segment.size";
+  public static final int DFS_NFS_SPILL_SEGMENT_SIZE_DEFAULT = 64 * 1024 * 1024;
   
   public static final String DFS_NFS_MAX_READ_TRANSFER_SIZE_KEY = "nfs.rtmax";
   public static final int DFS_NFS_MAX_READ_TRANSFER_SIZE_DEFAULT = 1024 * 1024;
@@ -41,6 +48,158 @@ public class NfsConfigKeys {
   public static final String DFS_NFS_MAX_OPEN_FILES_KEY = "nfs.max.open.files";
   public static final int DFS_NFS_MAX_OPEN_FILES_DEFAULT = 256;
 
+  /*
+   * RPC handler execution stage. NFS procedures are executed by a dedicated
+   * thread pool instead of the Netty I/O worker threads, so that a slow
+   * backend call does not stall other clients sharing the same worker.
+   * Setting the thread number to 0 disables the stage and runs procedures on
+   * the I/O threads. The memory limits bound the bytes of queued requests per
+   * connection and in total; once exceeded, the I/O thread stops reading
+   * until the queue drains. With the ordered option, requests from the same
+   * connection are executed one at a time in arrival order.
+   */
+  public static final String DFS_NFS_HANDLER_THREADS_KEY = "nfs.server.handler.threads";
+  public static final int DFS_NFS_HANDLER_THREADS_DEFAULT = 16;
+  public static final String DFS_NFS_HANDLER_MAX_CHANNEL_MEMORY_KEY = "nfs.server.handler.max.channel.memory";
+  public static final long DFS_NFS_HANDLER_MAX_CHANNEL_MEMORY_DEFAULT = 16 * 1024 * 1024;
+  public static final String DFS_NFS_HANDLER_MAX_TOTAL_MEMORY_KEY = "nfs.server.handler.max.total.memory";
+  public static final long DFS_NFS_HANDLER_MAX_TOTAL_MEMORY_DEFAULT = 256 * 1024 * 1024;
+  public static final String DFS_NFS_HANDLER_ORDERED_KEY = "nfs.server.handler.ordered";
+  public static final boolean DFS_NFS_HANDLER_ORDERED_DEFAULT = false;
+  public static final String DFS_NFS_HANDLER_KEEPALIVE_SECONDS_KEY = "nfs.server.handler.keepalive.seconds";
+  public static final long DFS_NFS_HANDLER_KEEPALIVE_SECONDS_DEFAULT = 60;
+
+  /*
+   * Replies to idempotent procedures are encoded into buffers taken from a
+   * pool, sized from an estimate of the reply. Direct buffers save the copy
+   * into a direct buffer on socket write at the cost of being slower to access
+   * while encoding. The pool keeps up to max bytes of released buffers, the
+   * others are dropped.
+   */
+  public static final String DFS_NFS_RESPONSE_BUFFER_POOL_KEY = "nfs.response.buffer.pool";
+  public static final boolean DFS_NFS_RESPONSE_BUFFER_POOL_DEFAULT = true;
+  public static final String DFS_NFS_RESPONSE_BUFFER_POOL_MAX_BYTES_KEY = "nfs.response.buffer.pool.max.bytes";
+  public static final long DFS_NFS_RESPONSE_BUFFER_POOL_MAX_BYTES_DEFAULT = 32L * 1024 * 1024;
+  public static final String DFS_NFS_RESPONSE_BUFFER_DIRECT_KEY = "nfs.response.buffer.direct";
+  public static final boolean DFS_NFS_RESPONSE_BUFFER_DIRECT_DEFAULT = false;
+
+  /*
+   * Duplicate request cache for non-idempotent calls. The limits are shared
+   * equally by the stripes of the cache. Entries older than the expiry time
+   * are dropped, and a single client can hold at most the per client number
+   * of entries.
+   */
+  public static final String DFS_NFS_DRC_MAX_ENTRIES_KEY = "nfs.drc.max.entries";
+  public static final int DFS_NFS_DRC_MAX_ENTRIES_DEFAULT = 4096;
+  public static final String DFS_NFS_DRC_MAX_BYTES_KEY = "nfs.drc.max.bytes";
+  public static final long DFS_NFS_DRC_MAX_BYTES_DEFAULT = 4 * 1024 * 1024;
+  public static final String DFS_NFS_DRC_EXPIRY_MILLIS_KEY = "nfs.drc.expiry.ms";
+  public static final long DFS_NFS_DRC_EXPIRY_MILLIS_DEFAULT = 120 * 1000; // 2 minutes
+  public static final String DFS_NFS_DRC_MAX_ENTRIES_PER_CLIENT_KEY = "nfs.drc.max.entries.per.client";
+  public static final int DFS_NFS_DRC_MAX_ENTRIES_PER_CLIENT_DEFAULT = 1024;
+
+  /*
+   * Attribute cache by fileId. A ttl of 0 disables the cache. Clients cache
+   * attributes for at least 3 seconds, so a shorter ttl adds little staleness.
+   */
+  public static final String DFS_NFS_ATTR_CACHE_TTL_MILLIS_KEY = "nfs.attr.cache.ttl.ms";
+  public static final long DFS_NFS_ATTR_CACHE_TTL_MILLIS_DEFAULT = 2000;
+  public static final String DFS_NFS_ATTR_CACHE_SIZE_KEY = "nfs.attr.cache.size";
+  public static final int DFS_NFS_ATTR_CACHE_SIZE_DEFAULT = 65536;
+
+  /*
+   * Directory entry cache for LOOKUP, including names that don't exist. An
+   * entry is also dropped as soon as the directory mtime changes. A ttl of 0
+   * disables the cache.
+   */
+  public static final String DFS_NFS_DENTRY_CACHE_TTL_MILLIS_KEY = "nfs.dentry.cache.ttl.ms";
+  public static final long DFS_NFS_DENTRY_CACHE_TTL_MILLIS_DEFAULT = 60 * 1000;
+  public static final String DFS_NFS_DENTRY_CACHE_SIZE_KEY = "nfs.dentry.cache.size";
+  public static final int DFS_NFS_DENTRY_CACHE_SIZE_DEFAULT = 65536;
+
+  /*
+   * Snapshots of directory listings that READDIR and READDIRPLUS pages are
+   * served from, keyed by directory fileId and valid while the directory keeps
+   * the same mtime (the cookie verifier). The size bounds the total number of
+   * cached entries over all directories. A ttl of 0 disables the cache.
+   */
+  public static final String DFS_NFS_LISTING_CACHE_TTL_MILLIS_KEY = "nfs.listing.cache.ttl.ms";
+  public static final long DFS_NFS_LISTING_CACHE_TTL_MILLIS_DEFAULT = 30 * 1000;
+  public static final String DFS_NFS_LISTING_CACHE_MAX_ENTRIES_KEY = "nfs.listing.cache.max.entries";
+  public static final int DFS_NFS_LISTING_CACHE_MAX_ENTRIES_DEFAULT = 200000;
+
+  /*
+   * Read-ahead for files read sequentially. Up to nfs.readahead.windows
+   * windows are prefetched ahead of the reader, each starting at the size of a
+   * READ and doubling while the reader stays sequential, up to
+   * nfs.readahead.window.max bytes. The prefetched data of all the files is
+   * bounded by nfs.readahead.max.bytes. 0 windows disables read-ahead.
+   */
+  public static final String DFS_NFS_READAHEAD_WINDOWS_KEY = "nfs.readahead.windows";
+  public static final int DFS_NFS_READAHEAD_WINDOWS_DEFAULT = 4;
+  public static final String DFS_NFS_READAHEAD_WINDOW_MAX_KEY = "nfs.readahead.window.max";
+  public static final int DFS_NFS_READAHEAD_WINDOW_MAX_DEFAULT = 4 * 1024 * 1024;
+  public static final String DFS_NFS_READAHEAD_MAX_BYTES_KEY = "nfs.readahead.max.bytes";
+  public static final long DFS_NFS_READAHEAD_MAX_BYTES_DEFAULT = 256L * 1024 * 1024;
+  public static final String DFS_NFS_READAHEAD_THREADS_KEY = "nfs.readahead.threads";
+  public static final int DFS_NFS_READAHEAD_THREADS_DEFAULT = 8;
+
+  /*
+   * Number of write back threads. The writes of a file are always written back
+   * by the same thread, files are spread over the threads by fileId. 0 means
+   * one thread per processor.
+   */
+  public static final String DFS_NFS_WRITEBACK_THREADS_KEY = "nfs.writeback.threads";
+  public static final int DFS_NFS_WRITEBACK_THREADS_DEFAULT = 0;
+
+  /*
+   * Direct memory for the payload of buffered writes, in use or kept for reuse.
+   * A write that doesn't fit keeps its data on the heap. 0 disables the pool.
+   */
+  public static final String DFS_NFS_WRITE_BUFFER_MAX_BYTES_KEY = "nfs.write.buffer.max.bytes";
+  public static final long DFS_NFS_WRITE_BUFFER_MAX_BYTES_DEFAULT = 256L * 1024 * 1024;
+
+  /*
+   * Gateway-wide limits of the write data buffered in memory. Above the spill
+   * threshold, the files with the most non-sequential data in memory dump it.
+   * Above the hard limit, writes that can't be written back right away are
+   * refused with NFS3ERR_JUKEBOX. 0 disables the limit.
+   */
+  public static final String DFS_NFS_WRITE_MEMORY_SPILL_BYTES_KEY = "nfs.write.memory.spill.bytes";
+  public static final long DFS_NFS_WRITE_MEMORY_SPILL_BYTES_DEFAULT = 256L * 1024 * 1024;
+  public static final String DFS_NFS_WRITE_MEMORY_MAX_BYTES_KEY = "nfs.write.memory.max.bytes";
+  public static final long DFS_NFS_WRITE_MEMORY_MAX_BYTES_DEFAULT = 1024L * 1024 * 1024;
+
+  /*
+   * Contiguous pending writes are written back together, in a single write to
+   * the backend of up to this many bytes. 0 writes them back one by one.
+   */
+  public static final String DFS_NFS_WRITE_COALESCE_MAX_BYTES_KEY = "nfs.write.coalesce.max.bytes";
+  public static final int DFS_NFS_WRITE_COALESCE_MAX_BYTES_DEFAULT = 4 * 1024 * 1024;
+
+  /*
+   * Group commit. COMMITs whose data is flushed wait up to the window for
+   * other commits, then each stream is synced once for the whole group. The
+   * window adapts to the load up to the maximum, 0 disables grouping.
+   */
+  public static final String DFS_NFS_COMMIT_GROUP_WINDOW_MAX_MICROS_KEY = "nfs.commit.group.window.max.us";
+  public static final long DFS_NFS_COMMIT_GROUP_WINDOW_MAX_MICROS_DEFAULT = 2000;
+  public static final String DFS_NFS_COMMIT_GROUP_MAX_BATCH_KEY = "nfs.commit.group.max.batch";
+  public static final int DFS_NFS_COMMIT_GROUP_MAX_BATCH_DEFAULT = 64;
+
+  /*
+   * Off-heap cache of READ data by (fileId, block), shared by all users. The
+   * size is the off-heap memory it may use, 0 disables the cache. The
+   * protected ratio is the share of the cache kept for blocks that were read
+   * more than once, so a single large scan can't flush them out.
+   */
+  public static final String DFS_NFS_BLOCK_CACHE_SIZE_KEY = "nfs.block.cache.size";
+  public static final long DFS_NFS_BLOCK_CACHE_SIZE_DEFAULT = 256L * 1024 * 1024;
+  public static final String DFS_NFS_BLOCK_CACHE_BLOCK_SIZE_KEY = "nfs.block.cache.block.size";
+  public static final int DFS_NFS_BLOCK_CACHE_BLOCK_SIZE_DEFAULT = 1024 * 1024;
+  public static final String DFS_NFS_BLOCK_CACHE_PROTECTED_RATIO_KEY = "nfs.block.cache.protected.ratio";
+  public static final float DFS_NFS_BLOCK_CACHE_PROTECTED_RATIO_DEFAULT = 0.8f;
+
   public static final String DFS_NFS_STREAM_TIMEOUT_KEY = "nfs.stream.timeout";
   public static final long DFS_NFS_STREAM_TIMEOUT_DEFAULT = 10 * 60 * 1000; // 10 minutes
   public static final long DFS_NFS_STREAM_TIMEOUT_MIN_DEFAULT = 10 * 1000; // 10 seconds
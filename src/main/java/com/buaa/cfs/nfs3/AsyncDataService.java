@@ -17,6 +17,8 @@
  */
 package com.buaa.cfs.nfs3;
 
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -24,69 +26,124 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is a thread pool to easily schedule async data operations. Current
  * async data operation is write back operation. In the future, we could use it
  * for readahead operations too.
+ * <p>
+ * The pool is striped: each stripe is a single thread with its own queue, and
+ * the tasks of a file always go to the same stripe. The tasks of a file are
+ * thus executed in order, one at a time, while different files are written
+ * back in parallel.
  */
 public class AsyncDataService {
   static final Log LOG = LogFactory.getLog(AsyncDataService.class);
 
-  // ThreadPool core pool size
-  private static final int CORE_THREADS_PER_VOLUME = 1;
-  // ThreadPool maximum pool size
-  private static final int MAXIMUM_THREADS_PER_VOLUME = 4;
-  // ThreadPool keep-alive time for threads over core pool size
+  // Keep-alive time of an idle stripe thread
   private static final long THREADS_KEEP_ALIVE_SECONDS = 60;
   private final ThreadGroup threadGroup = new ThreadGroup("async data service");
-  private ThreadFactory threadFactory = null;
-  private ThreadPoolExecutor executor = null;
+  private final ThreadPoolExecutor[] stripes;
+  private volatile boolean shutdown = false;
+
+  public AsyncDataService(NfsConfiguration config) {
+    int threads = config.getInt(NfsConfigKeys.DFS_NFS_WRITEBACK_THREADS_KEY,
+        NfsConfigKeys.DFS_NFS_WRITEBACK_THREADS_DEFAULT);
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    LOG.info("Async data service threads: " + threads);
 
-  public AsyncDataService() {
-    threadFactory = new ThreadFactory() {
+    final AtomicInteger threadIndex = new AtomicInteger();
+    ThreadFactory threadFactory = new ThreadFactory() {
       @Override
       public Thread newThread(Runnable r) {
-        return new Thread(threadGroup, r);
+        return new Thread(threadGroup, r,
+            "Async data service-" + threadIndex.getAndIncrement());
       }
     };
 
-    executor = new ThreadPoolExecutor(CORE_THREADS_PER_VOLUME,
-        MAXIMUM_THREADS_PER_VOLUME, THREADS_KEEP_ALIVE_SECONDS,
-        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+    stripes = new ThreadPoolExecutor[threads];
+    for (int i = 0; i < threads; i++) {
+      stripes[i] = new ThreadPoolExecutor(1, 1, THREADS_KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+      // This can reduce the number of running threads
+      stripes[i].allowCoreThreadTimeOut(true);
+    }
+  }
 
-    // This can reduce the number of running threads
-    executor.allowCoreThreadTimeOut(true);
+  private ThreadPoolExecutor getStripe(long fileId) {
+    int h = (int) (fileId ^ (fileId >>> 32));
+    return stripes[(h & Integer.MAX_VALUE) % stripes.length];
   }
 
   /**
-   * Execute the task sometime in the future.
+   * Execute the task sometime in the future, after the tasks of the same file
+   * queued before it.
    */
-  synchronized void execute(Runnable task) {
-    if (executor == null) {
+  void execute(WriteBackTask task) {
+    if (shutdown) {
       throw new RuntimeException("AsyncDataService is already shutdown");
     }
+    ThreadPoolExecutor executor = getStripe(task.getFileId());
     if (LOG.isDebugEnabled()) {
-      LOG.debug("Current active thread number: " + executor.getActiveCount()
+      LOG.debug("Current active thread number: " + getActiveCount()
           + " queue size: " + executor.getQueue().size()
           + " scheduled task number: " + executor.getTaskCount());
     }
+    task.queuedTime = System.nanoTime();
+    RpcProgramNfs3.metrics.incrWriteBackQueued();
     executor.execute(task);
   }
 
+  /**
+   * Run the task on the stripe of the file, after the tasks of the file
+   * queued before it.
+   */
+  void execute(long fileId, Runnable task) {
+    if (shutdown) {
+      throw new RuntimeException("AsyncDataService is already shutdown");
+    }
+    getStripe(fileId).execute(task);
+  }
+
+  /** Number of tasks waiting for a thread */
+  int getQueueSize() {
+    int size = 0;
+    for (ThreadPoolExecutor executor : stripes) {
+      size += executor.getQueue().size();
+    }
+    return size;
+  }
+
+  /** Number of tasks being executed */
+  int getActiveCount() {
+    int count = 0;
+    for (ThreadPoolExecutor executor : stripes) {
+      count += executor.getActiveCount();
+    }
+    return count;
+  }
+
+  int getThreads() {
+    return stripes.length;
+  }
+
   /**
    * Gracefully shut down the ThreadPool. Will wait for all data tasks to
    * finish.
    */
   synchronized void shutdown() {
-    if (executor == null) {
+    if (shutdown) {
       LOG.warn("AsyncDataService has already shut down.");
     } else {
       LOG.info("Shutting down all async data service threads...");
-      executor.shutdown();
-
-      // clear the executor so that calling execute again will fail.
-      executor = null;
+      // fail the calls to execute from now on
+      shutdown = true;
+      for (ThreadPoolExecutor executor : stripes) {
+        executor.shutdown();
+      }
       LOG.info("All async data service threads have been shut down");
     }
   }
@@ -99,8 +156,7 @@ public class AsyncDataService {
       LOG.debug("Scheduling write back task for fileId: "
           + openFileCtx.getLatestAttr().getFileId());
     }
-    WriteBackTask wbTask = new WriteBackTask(openFileCtx);
-    execute(wbTask);
+    execute(new WriteBackTask(openFileCtx));
   }
 
   /**
@@ -111,9 +167,16 @@ public class AsyncDataService {
   static class WriteBackTask implements Runnable {
 
     OpenFileCtx openFileCtx;
+    private final long fileId;
+    private long queuedTime;
 
     WriteBackTask(OpenFileCtx openFileCtx) {
       this.openFileCtx = openFileCtx;
+      this.fileId = openFileCtx.getLatestAttr().getFileId();
+    }
+
+    long getFileId() {
+      return fileId;
     }
 
     OpenFileCtx getOpenFileCtx() {
@@ -130,11 +193,15 @@ public class AsyncDataService {
 
     @Override
     public void run() {
+      long startTime = System.nanoTime();
+      RpcProgramNfs3.metrics.decrWriteBackQueued();
+      RpcProgramNfs3.metrics.addWriteBackWait(startTime - queuedTime);
       try {
         openFileCtx.executeWriteBack();
       } catch (Throwable t) {
         LOG.error("Async data service got error: ", t);
       }
+      RpcProgramNfs3.metrics.addWriteBackTime(System.nanoTime() - startTime);
     }
   }
 }
@@ -19,7 +19,6 @@ import com.buaa.cfs.fs.FSDataInputStream;
 import com.buaa.cfs.security.UserGroupInformation;
 import com.buaa.cfs.utils.ShutdownHookManager;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.*;
 import org.apache.commons.logging.Log;
@@ -33,6 +32,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A cache saves DFSClient objects for different users
@@ -48,9 +48,10 @@ class DFSClientCache {
     final static int DEFAULT_DFS_CLIENT_CACHE_SIZE = 256;
 
     /**
-     * Cache that maps <DFSClient, inode path> to the corresponding FSDataInputStream.
+     * Cache that maps fileId to the read handle of the file, shared by all the
+     * users reading it.
      */
-    final LoadingCache<DFSInputStreamCaheKey, FSDataInputStream> inputstreamCache;
+    final Cache<Long, ReadHandle> readHandleCache;
 
     /**
      * Time to live for a DFSClient (in seconds)
@@ -60,28 +61,68 @@ class DFSClientCache {
 
     private final NfsConfiguration config;
 
-    private static class DFSInputStreamCaheKey {
-        final String userId;
-        final String inodePath;
+    private final AtomicLong readHandleHits = new AtomicLong();
+    private final AtomicLong readHandleMisses = new AtomicLong();
+    private final AtomicLong openReadHandles = new AtomicLong();
 
-        private DFSInputStreamCaheKey(String userId, String inodePath) {
-            super();
-            this.userId = userId;
-            this.inodePath = inodePath;
+    /**
+     * An input stream of a file used for positional reads by all the users
+     * reading the file, who must have been authorized by the caller. It is
+     * reference counted, so a handle which is replaced or evicted is only closed
+     * once the reads in progress are done.
+     * <p>
+     * A handle remembers the mtime of the file it was opened at. When the file
+     * has changed since, or a read from the handle failed, the handle is stale
+     * and the next read opens a new one.
+     */
+    static final class ReadHandle {
+        private final long fileId;
+        private final long mtime;
+        private final FSDataInputStream fis;
+        /** Held by the cache and by each read in progress */
+        private int refCount = 1;
+        private volatile boolean stale;
+        private final AtomicLong openHandles;
+
+        private ReadHandle(long fileId, long mtime, FSDataInputStream fis,
+                AtomicLong openHandles) {
+            this.fileId = fileId;
+            this.mtime = mtime;
+            this.fis = fis;
+            this.openHandles = openHandles;
+            openHandles.incrementAndGet();
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof DFSInputStreamCaheKey) {
-                DFSInputStreamCaheKey k = (DFSInputStreamCaheKey) obj;
-                return userId.equals(k.userId) && inodePath.equals(k.inodePath);
+        long getFileId() {
+            return fileId;
+        }
+
+        /** @see FSDataInputStream#read(long, byte[], int, int) */
+        int read(long position, byte[] buf, int off, int len) throws IOException {
+            return fis.read(position, buf, off, len);
+        }
+
+        /** @return false if the handle has already been closed */
+        synchronized boolean tryRetain() {
+            if (refCount == 0) {
+                return false;
             }
-            return false;
+            refCount++;
+            return true;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hashCode(userId, inodePath);
+        void release() {
+            synchronized (this) {
+                if (--refCount > 0) {
+                    return;
+                }
+            }
+            openHandles.decrementAndGet();
+            try {
+                fis.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close the input stream of fileId: " + fileId, e);
+            }
         }
     }
 
@@ -96,11 +137,11 @@ class DFSClientCache {
                 .removalListener(clientRemovalListener())
                 .build(clientLoader());
 
-        this.inputstreamCache = CacheBuilder.newBuilder()
+        this.readHandleCache = CacheBuilder.newBuilder()
                 .maximumSize(DEFAULT_DFS_INPUTSTREAM_CACHE_SIZE)
                 .expireAfterAccess(DEFAULT_DFS_INPUTSTREAM_CACHE_TTL, TimeUnit.SECONDS)
-                .removalListener(inputStreamRemovalListener())
-                .build(inputStreamLoader());
+                .removalListener(readHandleRemovalListener())
+                .build();
 
         ShutdownHookManager.get().addShutdownHook(new CacheFinalizer(),
                 SHUTDOWN_HOOK_PRIORITY);
@@ -211,31 +252,26 @@ class DFSClientCache {
         };
     }
 
-    private RemovalListener<DFSInputStreamCaheKey, FSDataInputStream> inputStreamRemovalListener() {
-        return new RemovalListener<DFSInputStreamCaheKey, FSDataInputStream>() {
+    private RemovalListener<Long, ReadHandle> readHandleRemovalListener() {
+        return new RemovalListener<Long, ReadHandle>() {
 
             @Override
-            public void onRemoval(
-                    RemovalNotification<DFSInputStreamCaheKey, FSDataInputStream> notification) {
-                try {
-                    notification.getValue().close();
-                } catch (IOException ignored) {
-                }
+            public void onRemoval(RemovalNotification<Long, ReadHandle> notification) {
+                // Drop the reference of the cache
+                notification.getValue().release();
             }
         };
     }
 
-    private CacheLoader<DFSInputStreamCaheKey, FSDataInputStream> inputStreamLoader() {
-        return new CacheLoader<DFSInputStreamCaheKey, FSDataInputStream>() {
-
-            @Override
-            public FSDataInputStream load(DFSInputStreamCaheKey key) throws Exception {
-                DFSClient client = getDfsClient(key.userId);
-//                DFSInputStream dis = client.open(key.inodePath);
-//                return client.createWrappedInputStream(dis);
-                return null;
-            }
-        };
+    private FSDataInputStream openInputStream(String userName, String inodePath)
+            throws IOException {
+        DFSClient client = getDfsClient(userName);
+        if (client == null) {
+            return null;
+        }
+//        DFSInputStream dis = client.open(inodePath);
+//        return client.createWrappedInputStream(dis);
+        return null;
     }
 
     DFSClient getDfsClient(String userName) {
@@ -249,20 +285,63 @@ class DFSClientCache {
         return client;
     }
 
-    FSDataInputStream getDfsInputStream(String userName, String inodePath) {
-        DFSInputStreamCaheKey k = new DFSInputStreamCaheKey(userName, inodePath);
-        FSDataInputStream s = null;
-        try {
-            s = inputstreamCache.get(k);
-        } catch (ExecutionException e) {
-            LOG.warn("Failed to create DFSInputStream for user:" + userName
-                    + " Cause:" + e);
+    /**
+     * Get the read handle of a file, opening it as the given user if there is
+     * no valid one. The caller must have checked that the user may read the
+     * file, and must release the handle when done.
+     *
+     * @param mtime current mtime of the file
+     *
+     * @return the retained handle, or null if the file can't be opened
+     */
+    ReadHandle getReadHandle(String userName, long fileId, long mtime)
+            throws IOException {
+        while (true) {
+            ReadHandle h = readHandleCache.getIfPresent(fileId);
+            if (h != null && (h.stale || h.mtime != mtime)) {
+                readHandleCache.asMap().remove(fileId, h);
+                h = null;
+            }
+            if (h == null) {
+                readHandleMisses.incrementAndGet();
+                FSDataInputStream fis = openInputStream(userName,
+                        Nfs3Utils.getFileIdPath(fileId));
+                if (fis == null) {
+                    return null;
+                }
+                h = new ReadHandle(fileId, mtime, fis, openReadHandles);
+                ReadHandle prev = readHandleCache.asMap().putIfAbsent(fileId, h);
+                if (prev != null) {
+                    // Opened concurrently, keep the first one
+                    h.release();
+                    continue;
+                }
+            } else {
+                readHandleHits.incrementAndGet();
+            }
+            if (h.tryRetain()) {
+                return h;
+            }
+            // Closed after being evicted in the meantime
         }
-        return s;
     }
 
-    public void invalidateDfsInputStream(String userName, String inodePath) {
-        DFSInputStreamCaheKey k = new DFSInputStreamCaheKey(userName, inodePath);
-        inputstreamCache.invalidate(k);
+    /** Stop using a handle, e.g. after a read from it failed */
+    void invalidateReadHandle(ReadHandle h) {
+        h.stale = true;
+        readHandleCache.asMap().remove(h.fileId, h);
+    }
+
+    long getReadHandleHits() {
+        return readHandleHits.get();
+    }
+
+    long getReadHandleMisses() {
+        return readHandleMisses.get();
+    }
+
+    /** Number of handles not closed yet, including the evicted ones still in use */
+    long getOpenReadHandles() {
+        return openReadHandles.get();
     }
 }
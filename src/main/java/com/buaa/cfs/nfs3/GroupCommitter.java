@@ -0,0 +1,324 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.client.DFSClient;
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.buaa.cfs.nfs3.OpenFileCtx.COMMIT_STATUS;
+import com.buaa.cfs.utils.Daemon;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.Channel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completes the COMMIT requests whose data is already flushed in groups. With
+ * many clients calling fsync, each COMMIT would otherwise sync its stream and
+ * fetch the post-op attributes on its own.
+ * <p>
+ * A single thread takes the queued commits, waits up to the current window for
+ * more to arrive, then syncs each stream once and refreshes its attributes
+ * once for all the commits of the file in the group. The streams of different
+ * files are synced in parallel, each on the stripe of its file in the
+ * {@link AsyncDataService}. The window adapts to the
+ * load: it doubles, up to the configured maximum, after a group of more than
+ * one commit, and halves after a single commit, so a lone client doesn't wait.
+ * A maximum window of 0 disables grouping and commits are synced by the caller.
+ */
+class GroupCommitter {
+    private static final Log LOG = LogFactory.getLog(GroupCommitter.class);
+
+    /** The smallest window once grouping kicks in */
+    private static final long MIN_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /** A COMMIT waiting for the sync of its stream */
+    static final class Request {
+        private final OpenFileCtx ctx;
+        private final DFSClient dfsClient;
+        private final FileHandle handle;
+        private final Channel channel;
+        private final int xid;
+        private final Nfs3FileAttributes preOpAttr;
+        private final long startTime;
+
+        Request(OpenFileCtx ctx, DFSClient dfsClient, FileHandle handle,
+                Channel channel, int xid, Nfs3FileAttributes preOpAttr,
+                long startTime) {
+            this.ctx = ctx;
+            this.dfsClient = dfsClient;
+            this.handle = handle;
+            this.channel = channel;
+            this.xid = xid;
+            this.preOpAttr = preOpAttr;
+            this.startTime = startTime;
+        }
+
+        Channel getChannel() {
+            return channel;
+        }
+
+        int getXid() {
+            return xid;
+        }
+
+        Nfs3FileAttributes getPreOpAttr() {
+            return preOpAttr;
+        }
+
+        long getStartTime() {
+            return startTime;
+        }
+    }
+
+    /** Replies to the commits of a file once its stream is synced */
+    interface Responder {
+        void respond(DFSClient dfsClient, FileHandle handle, int status,
+                List<Request> requests);
+    }
+
+    private final Responder responder;
+    private final long maxWindowNanos;
+    private final int maxBatch;
+    private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+    private long windowNanos;
+    private volatile boolean running;
+    private Daemon thread;
+    /** Runs the syncs of a group, null to sync in the committer thread */
+    private AsyncDataService dataService;
+
+    private long groups;
+    private long commits;
+    private long syncs;
+
+    GroupCommitter(NfsConfiguration config, Responder responder) {
+        this.responder = responder;
+        maxWindowNanos = TimeUnit.MICROSECONDS.toNanos(config.getLong(
+                NfsConfigKeys.DFS_NFS_COMMIT_GROUP_WINDOW_MAX_MICROS_KEY,
+                NfsConfigKeys.DFS_NFS_COMMIT_GROUP_WINDOW_MAX_MICROS_DEFAULT));
+        maxBatch = Math.max(1, config.getInt(
+                NfsConfigKeys.DFS_NFS_COMMIT_GROUP_MAX_BATCH_KEY,
+                NfsConfigKeys.DFS_NFS_COMMIT_GROUP_MAX_BATCH_DEFAULT));
+        if (isEnabled()) {
+            LOG.info("Group commit window is up to " + maxWindowNanos
+                    + "ns, batches of up to " + maxBatch + " commits");
+        } else {
+            LOG.info("Group commit is disabled");
+        }
+    }
+
+    boolean isEnabled() {
+        return maxWindowNanos > 0 && maxBatch > 1;
+    }
+
+    void start(AsyncDataService dataService) {
+        if (!isEnabled() || running) {
+            return;
+        }
+        this.dataService = dataService;
+        running = true;
+        thread = new Daemon(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        });
+        thread.setName("Group committer");
+        thread.start();
+    }
+
+    /** Stop the thread, the queued commits are completed first */
+    void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            thread.join(3000);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Queue a commit whose data is flushed. If the committer is not running,
+     * the commit is completed by the calling thread.
+     */
+    void submit(Request request) {
+        synchronized (this) {
+            if (running) {
+                queue.add(request);
+                if (queue.size() == 1 || queue.size() >= maxBatch) {
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        List<Request> single = new ArrayList<Request>(1);
+        single.add(request);
+        complete(single);
+    }
+
+    private void runLoop() {
+        while (true) {
+            List<Request> batch;
+            try {
+                batch = take();
+            } catch (InterruptedException e) {
+                LOG.info("Group committer is interrupted");
+                break;
+            }
+            if (batch == null) {
+                break;
+            }
+            try {
+                complete(batch);
+            } catch (Throwable t) {
+                LOG.error("Group commit failed", t);
+            }
+        }
+        // Complete what was queued meanwhile
+        List<Request> rest;
+        synchronized (this) {
+            rest = new ArrayList<Request>(queue);
+            queue.clear();
+        }
+        if (!rest.isEmpty()) {
+            complete(rest);
+        }
+    }
+
+    /** @return the next group, null once stopped with nothing queued */
+    private synchronized List<Request> take() throws InterruptedException {
+        while (queue.isEmpty()) {
+            if (!running) {
+                return null;
+            }
+            wait();
+        }
+        // Give other commits the window to join
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining = windowNanos;
+        while (running && queue.size() < maxBatch && remaining > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        List<Request> batch = new ArrayList<Request>(Math.min(queue.size(), maxBatch));
+        while (!queue.isEmpty() && batch.size() < maxBatch) {
+            batch.add(queue.poll());
+        }
+        adaptWindow(batch.size());
+        return batch;
+    }
+
+    private void adaptWindow(int batchSize) {
+        if (batchSize > 1) {
+            windowNanos = Math.min(maxWindowNanos,
+                    Math.max(MIN_WINDOW_NANOS, windowNanos * 2));
+        } else {
+            windowNanos /= 2;
+            if (windowNanos < MIN_WINDOW_NANOS) {
+                windowNanos = 0;
+            }
+        }
+    }
+
+    /** Sync each stream once and reply to all its commits */
+    private void complete(List<Request> batch) {
+        Map<OpenFileCtx, List<Request>> byFile =
+                new LinkedHashMap<OpenFileCtx, List<Request>>();
+        for (Request r : batch) {
+            List<Request> l = byFile.get(r.ctx);
+            if (l == null) {
+                l = new ArrayList<Request>();
+                byFile.put(r.ctx, l);
+            }
+            l.add(r);
+        }
+        if (byFile.size() == 1 || dataService == null) {
+            for (Map.Entry<OpenFileCtx, List<Request>> e : byFile.entrySet()) {
+                syncAndRespond(e.getKey(), e.getValue());
+            }
+        } else {
+            final CountDownLatch done = new CountDownLatch(byFile.size());
+            for (Map.Entry<OpenFileCtx, List<Request>> e : byFile.entrySet()) {
+                final OpenFileCtx ctx = e.getKey();
+                final List<Request> requests = e.getValue();
+                Runnable sync = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            syncAndRespond(ctx, requests);
+                        } catch (Throwable t) {
+                            LOG.error("Group commit of fileId "
+                                    + requests.get(0).handle.getFileId() + " failed", t);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                };
+                try {
+                    dataService.execute(requests.get(0).handle.getFileId(), sync);
+                } catch (RuntimeException ex) {
+                    // The service is shut down, sync here
+                    sync.run();
+                }
+            }
+            Uninterruptibles.awaitUninterruptibly(done);
+        }
+        synchronized (this) {
+            groups++;
+            commits += batch.size();
+            syncs += byFile.size();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Completed " + batch.size() + " commits of " + byFile.size()
+                    + " files");
+        }
+    }
+
+    private void syncAndRespond(OpenFileCtx ctx, List<Request> requests) {
+        COMMIT_STATUS ret = ctx.syncForCommit();
+        int status = ret == COMMIT_STATUS.COMMIT_FINISHED ? Nfs3Status.NFS3_OK
+                : Nfs3Status.NFS3ERR_IO;
+        Request first = requests.get(0);
+        responder.respond(first.dfsClient, first.handle, status, requests);
+    }
+
+    /** Current window in microseconds */
+    synchronized long getWindowMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(windowNanos);
+    }
+
+    synchronized long getGroups() {
+        return groups;
+    }
+
+    synchronized long getCommits() {
+        return commits;
+    }
+
+    synchronized long getSyncs() {
+        return syncs;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.client.DFSClient;
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.buaa.cfs.security.IdMappingServiceProvider;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of file attributes by fileId, which saves a getFileInfo call to the
+ * backend for most GETATTR, ACCESS, LOOKUP and wcc data. Entries expire after
+ * a short time, and the handlers invalidate the entries of the files and
+ * directories they modify, so the attributes seen by a client are at most as
+ * stale as the ones it caches itself.
+ * <p>
+ * The cached objects are never handed out, callers get a copy they are free to
+ * modify.
+ */
+class Nfs3AttrCache {
+    private static final Log LOG = LogFactory.getLog(Nfs3AttrCache.class);
+
+    /** null if the cache is disabled */
+    private final Cache<Long, Nfs3FileAttributes> cache;
+
+    Nfs3AttrCache(NfsConfiguration config) {
+        long ttl = config.getLong(NfsConfigKeys.DFS_NFS_ATTR_CACHE_TTL_MILLIS_KEY,
+                NfsConfigKeys.DFS_NFS_ATTR_CACHE_TTL_MILLIS_DEFAULT);
+        int maxEntries = config.getInt(NfsConfigKeys.DFS_NFS_ATTR_CACHE_SIZE_KEY,
+                NfsConfigKeys.DFS_NFS_ATTR_CACHE_SIZE_DEFAULT);
+        if (ttl <= 0 || maxEntries <= 0) {
+            LOG.info("Attribute cache is disabled");
+            cache = null;
+        } else {
+            LOG.info("Attribute cache size is " + maxEntries + ", ttl is " + ttl
+                    + "ms");
+            cache = CacheBuilder.newBuilder()
+                    .maximumSize(maxEntries)
+                    .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+    }
+
+    /**
+     * Get the attributes of the file at fileIdPath, from the cache if the path
+     * is a fileId path and the file is cached.
+     */
+    Nfs3FileAttributes getFileAttr(DFSClient client, String fileIdPath,
+            IdMappingServiceProvider iug) throws IOException {
+        if (cache != null) {
+            long fileId = getFileId(fileIdPath);
+            if (fileId >= 0) {
+                Nfs3FileAttributes attr = get(fileId);
+                if (attr != null) {
+                    return attr;
+                }
+            }
+        }
+        Nfs3FileAttributes attr = Nfs3Utils.getFileAttr(client, fileIdPath, iug);
+        if (attr != null) {
+            put(attr);
+        }
+        return attr;
+    }
+
+    /** @return a copy of the cached attributes, null if not cached */
+    Nfs3FileAttributes get(long fileId) {
+        if (cache == null) {
+            return null;
+        }
+        Nfs3FileAttributes attr = cache.getIfPresent(fileId);
+        return attr == null ? null : new Nfs3FileAttributes(attr);
+    }
+
+    /** Cache a copy of attr, replacing the previous attributes of the file */
+    void put(Nfs3FileAttributes attr) {
+        if (cache != null) {
+            cache.put(attr.getFileId(), new Nfs3FileAttributes(attr));
+        }
+    }
+
+    void invalidate(long fileId) {
+        if (cache != null) {
+            cache.invalidate(fileId);
+        }
+    }
+
+    void invalidate(FileHandle handle) {
+        invalidate(handle.getFileId());
+    }
+
+    @VisibleForTesting
+    long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    /** @return the fileId of a fileId path, -1 for any other path */
+    private static long getFileId(String path) {
+        String prefix = Nfs3Utils.INODEID_PATH_PREFIX;
+        int len = path.length();
+        if (!path.startsWith(prefix) || len == prefix.length()
+                || len - prefix.length() > 18) {
+            return -1;
+        }
+        long fileId = 0;
+        for (int i = prefix.length(); i < len; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            fileId = fileId * 10 + (c - '0');
+        }
+        return fileId;
+    }
+}
@@ -15,10 +15,13 @@ package com.buaa.cfs.nfs3;
 import com.buaa.cfs.common.oncrpc.RpcProgram;
 import com.buaa.cfs.common.oncrpc.SimpleTcpServer;
 import com.buaa.cfs.common.portmap.PortmapMapping;
+import com.buaa.cfs.common.oncrpc.RpcUtil;
 import com.buaa.cfs.conf.Configuration;
+import com.buaa.cfs.conf.NfsConfigKeys;
 import com.buaa.cfs.utils.ShutdownHookManager;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 import static com.buaa.cfs.utils.ExitUtil.terminate;
 
@@ -28,6 +31,7 @@ import static com.buaa.cfs.utils.ExitUtil.terminate;
 public abstract class Nfs3Base {
     public static final Log LOG = LogFactory.getLog(Nfs3Base.class);
     private final RpcProgram rpcProgram;
+    private final Configuration conf;
     private int nfsBoundPort; // Will set after server starts
 
     public RpcProgram getRpcProgram() {
@@ -36,6 +40,7 @@ public abstract class Nfs3Base {
 
     protected Nfs3Base(RpcProgram rpcProgram, Configuration conf) {
         this.rpcProgram = rpcProgram;
+        this.conf = conf;
         LOG.info("NFS server port set to: " + rpcProgram.getPort());
     }
 
@@ -56,7 +61,7 @@ public abstract class Nfs3Base {
 
     private void startTCPServer() {
         SimpleTcpServer tcpServer = new SimpleTcpServer(rpcProgram.getPort(),
-                rpcProgram, 0);
+                rpcProgram, 0, createExecutionHandler());
         rpcProgram.startDaemons();
         try {
             tcpServer.run();
@@ -72,6 +77,36 @@ public abstract class Nfs3Base {
         nfsBoundPort = tcpServer.getBoundPort();
     }
 
+    /**
+     * Create the stage executing NFS procedures outside the I/O threads, or
+     * null if it's disabled by configuration.
+     */
+    private ExecutionHandler createExecutionHandler() {
+        int threads = conf.getInt(NfsConfigKeys.DFS_NFS_HANDLER_THREADS_KEY,
+                NfsConfigKeys.DFS_NFS_HANDLER_THREADS_DEFAULT);
+        if (threads <= 0) {
+            LOG.info("Handler execution stage is disabled, NFS procedures will run"
+                    + " on the I/O threads.");
+            return null;
+        }
+        long maxChannelMemory = conf.getLongBytes(
+                NfsConfigKeys.DFS_NFS_HANDLER_MAX_CHANNEL_MEMORY_KEY,
+                NfsConfigKeys.DFS_NFS_HANDLER_MAX_CHANNEL_MEMORY_DEFAULT);
+        long maxTotalMemory = conf.getLongBytes(
+                NfsConfigKeys.DFS_NFS_HANDLER_MAX_TOTAL_MEMORY_KEY,
+                NfsConfigKeys.DFS_NFS_HANDLER_MAX_TOTAL_MEMORY_DEFAULT);
+        long keepAlive = conf.getLong(
+                NfsConfigKeys.DFS_NFS_HANDLER_KEEPALIVE_SECONDS_KEY,
+                NfsConfigKeys.DFS_NFS_HANDLER_KEEPALIVE_SECONDS_DEFAULT);
+        boolean ordered = conf.getBoolean(NfsConfigKeys.DFS_NFS_HANDLER_ORDERED_KEY,
+                NfsConfigKeys.DFS_NFS_HANDLER_ORDERED_DEFAULT);
+        LOG.info("Handler execution stage: threads=" + threads
+                + " maxChannelMemory=" + maxChannelMemory + " maxTotalMemory="
+                + maxTotalMemory + " ordered=" + ordered);
+        return RpcUtil.constructExecutionHandler("nfs3", threads,
+                maxChannelMemory, maxTotalMemory, keepAlive, ordered);
+    }
+
     /**
      * Priority of the nfsd shutdown hook.
      */
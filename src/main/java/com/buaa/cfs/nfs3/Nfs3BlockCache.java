@@ -0,0 +1,405 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An off-heap cache of file data for READ, by (fileId, block index). The input
+ * streams are per user, so without it every user reading the same file pays
+ * for the backend reads. The cache is shared by all users, the caller checks
+ * the read permission against the file attributes before reading from it.
+ * <p>
+ * A block remembers the mtime and the size the file had when it was loaded,
+ * and is only used while the file still has them. The gateway also drops the
+ * blocks of a file it changes.
+ * <p>
+ * The memory is allocated in slabs of direct buffers as the cache fills up,
+ * and divided into slots of the block size. Blocks are evicted with a
+ * segmented LRU: a new block enters the probation segment and moves to the
+ * protected segment when a range it has already served is read again. The
+ * successive READs of one sequential pass through a block read past the
+ * last range served and leave it in probation. Blocks leaving the protected
+ * segment go back to probation, and blocks are evicted from the probation
+ * segment only, so a scan through a large file can't evict the blocks that
+ * are read repeatedly.
+ */
+class Nfs3BlockCache {
+    private static final Log LOG = LogFactory.getLog(Nfs3BlockCache.class);
+
+    private static final int MAX_SLAB_SIZE = 1 << 30;
+
+    /** Loads file data on a cache miss */
+    interface Loader {
+        /** @return the number of bytes read at position, -1 at end of file */
+        int load(long position, byte[] buf, int off, int len) throws IOException;
+    }
+
+    private static final class Key {
+        private final long fileId;
+        private final long index;
+
+        Key(long fileId, long index) {
+            this.fileId = fileId;
+            this.index = index;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = fileId * 31 + index;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return fileId == other.fileId && index == other.index;
+        }
+    }
+
+    private static final class Block {
+        private final Key key;
+        private final int slot;
+        private final int length;
+        private final long mtime;
+        private final long fileSize;
+        /** Readers copying from the slot, it is not reused before they finish */
+        private int refCount;
+        private boolean removed;
+        private boolean isProtected;
+        /** End, in the block, of the last range served from it */
+        private int lastReadEnd;
+        /** LRU list of the segment */
+        private Block prev, next;
+        /** List of the blocks of the same file */
+        private Block filePrev, fileNext;
+
+        Block(Key key, int slot, int length, long mtime, long fileSize) {
+            this.key = key;
+            this.slot = slot;
+            this.length = length;
+            this.mtime = mtime;
+            this.fileSize = fileSize;
+        }
+    }
+
+    /** A doubly linked LRU list, most recently used first */
+    private static final class Segment {
+        private Block head, tail;
+        private int size;
+
+        void addFirst(Block b) {
+            b.prev = null;
+            b.next = head;
+            if (head != null) {
+                head.prev = b;
+            } else {
+                tail = b;
+            }
+            head = b;
+            size++;
+        }
+
+        void remove(Block b) {
+            if (b.prev != null) {
+                b.prev.next = b.next;
+            } else {
+                head = b.next;
+            }
+            if (b.next != null) {
+                b.next.prev = b.prev;
+            } else {
+                tail = b.prev;
+            }
+            b.prev = b.next = null;
+            size--;
+        }
+    }
+
+    private final int blockSize;
+    private final int numSlots;
+    private final int slotsPerSlab;
+    private final int protectedCapacity;
+    private final ByteBuffer[] slabs;
+    /** Number of slots allocated from the slabs so far */
+    private int allocatedSlots;
+    private final int[] freeSlots;
+    private int numFreeSlots;
+
+    private final Map<Key, Block> blocks = new HashMap<Key, Block>();
+    /** First block of each file */
+    private final Map<Long, Block> files = new HashMap<Long, Block>();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+    private final Nfs3Metrics metrics;
+
+    Nfs3BlockCache(NfsConfiguration config, Nfs3Metrics metrics) {
+        long size = config.getLongBytes(NfsConfigKeys.DFS_NFS_BLOCK_CACHE_SIZE_KEY,
+                NfsConfigKeys.DFS_NFS_BLOCK_CACHE_SIZE_DEFAULT);
+        blockSize = config.getInt(NfsConfigKeys.DFS_NFS_BLOCK_CACHE_BLOCK_SIZE_KEY,
+                NfsConfigKeys.DFS_NFS_BLOCK_CACHE_BLOCK_SIZE_DEFAULT);
+        float protectedRatio = config.getFloat(
+                NfsConfigKeys.DFS_NFS_BLOCK_CACHE_PROTECTED_RATIO_KEY,
+                NfsConfigKeys.DFS_NFS_BLOCK_CACHE_PROTECTED_RATIO_DEFAULT);
+        Preconditions.checkArgument(blockSize > 0 && blockSize <= MAX_SLAB_SIZE,
+                "Invalid block cache block size " + blockSize);
+        Preconditions.checkArgument(protectedRatio >= 0 && protectedRatio < 1,
+                "Invalid block cache protected ratio " + protectedRatio);
+        this.metrics = metrics;
+
+        numSlots = (int) Math.min(Math.max(size, 0) / blockSize, Integer.MAX_VALUE);
+        slotsPerSlab = Math.max(1, Math.min(MAX_SLAB_SIZE / blockSize, 64));
+        protectedCapacity = (int) (numSlots * protectedRatio);
+        slabs = new ByteBuffer[(numSlots + slotsPerSlab - 1) / slotsPerSlab];
+        freeSlots = new int[numSlots];
+        if (numSlots == 0) {
+            LOG.info("Block cache is disabled");
+        } else {
+            LOG.info("Block cache of " + numSlots + " blocks of " + blockSize
+                    + " bytes");
+        }
+    }
+
+    boolean isEnabled() {
+        return numSlots > 0;
+    }
+
+    /**
+     * Read the file from the cache. The blocks that are not cached, or are
+     * stale, are loaded with the loader and added to the cache.
+     *
+     * @param mtime    current mtime of the file
+     * @param fileSize current size of the file
+     *
+     * @return the number of bytes read, -1 if offset is at or beyond the end of
+     * the file
+     */
+    int read(long fileId, long mtime, long fileSize, long offset, byte[] buf,
+            int count, Loader loader) throws IOException {
+        if (offset >= fileSize) {
+            return -1;
+        }
+        long end = Math.min(offset + count, fileSize);
+        int done = 0;
+        while (offset + done < end) {
+            long pos = offset + done;
+            long index = pos / blockSize;
+            long blockStart = index * blockSize;
+            int from = (int) (pos - blockStart);
+            int len = (int) Math.min(end - pos, blockSize - from);
+
+            Block b = acquire(new Key(fileId, index), mtime, fileSize, from,
+                    from + len);
+            if (b != null) {
+                try {
+                    len = Math.min(len, b.length - from);
+                    ByteBuffer d = slot(b.slot);
+                    d.position(d.position() + from);
+                    d.get(buf, done, len);
+                } finally {
+                    release(b);
+                }
+                metrics.incrBlockCacheHits();
+            } else {
+                int blockLen = (int) Math.min(blockSize, fileSize - blockStart);
+                byte[] data = new byte[blockLen];
+                int n = 0;
+                while (n < blockLen) {
+                    int r = loader.load(blockStart + n, data, n, blockLen - n);
+                    if (r < 0) {
+                        break;
+                    }
+                    n += r;
+                }
+                metrics.incrBlockCacheMisses();
+                if (n == blockLen) {
+                    put(new Key(fileId, index), mtime, fileSize, data,
+                            Math.min(from + len, n));
+                }
+                len = Math.min(len, n - from);
+                if (len <= 0) {
+                    // The file is shorter than its attributes tell
+                    break;
+                }
+                System.arraycopy(data, from, buf, done, len);
+            }
+            done += len;
+        }
+        return done;
+    }
+
+    /** @return a view of the slot, positioned at its start */
+    private ByteBuffer slot(int slot) {
+        ByteBuffer d = slabs[slot / slotsPerSlab].duplicate();
+        int start = (slot % slotsPerSlab) * blockSize;
+        d.limit(start + blockSize);
+        d.position(start);
+        return d;
+    }
+
+    /**
+     * @param from start of the range to read in the block
+     * @param to   end of the range to read in the block
+     *
+     * @return the block pinned for reading, or null if not cached or stale
+     */
+    private synchronized Block acquire(Key key, long mtime, long fileSize,
+            int from, int to) {
+        Block b = blocks.get(key);
+        if (b == null) {
+            return null;
+        }
+        if (b.mtime != mtime || b.fileSize != fileSize) {
+            // The file has changed, none of its blocks are valid anymore
+            invalidate(key.fileId);
+            return null;
+        }
+        if (b.isProtected) {
+            protectedSegment.remove(b);
+            protectedSegment.addFirst(b);
+        } else if (from < b.lastReadEnd) {
+            // Part of the range has been served before
+            probation.remove(b);
+            promote(b);
+        } else {
+            probation.remove(b);
+            probation.addFirst(b);
+        }
+        b.lastReadEnd = Math.min(to, b.length);
+        b.refCount++;
+        return b;
+    }
+
+    private synchronized void release(Block b) {
+        if (--b.refCount == 0 && b.removed) {
+            freeSlots[numFreeSlots++] = b.slot;
+        }
+    }
+
+    /** Move a block re-referenced to the protected segment */
+    private void promote(Block b) {
+        if (protectedCapacity == 0) {
+            probation.addFirst(b);
+            return;
+        }
+        b.isProtected = true;
+        protectedSegment.addFirst(b);
+        while (protectedSegment.size > protectedCapacity) {
+            Block demoted = protectedSegment.tail;
+            protectedSegment.remove(demoted);
+            demoted.isProtected = false;
+            probation.addFirst(demoted);
+        }
+    }
+
+    /** @param readEnd end, in the block, of the range read when loading it */
+    private synchronized void put(Key key, long mtime, long fileSize, byte[] data,
+            int readEnd) {
+        if (blocks.containsKey(key)) {
+            // Loaded concurrently by another reader
+            return;
+        }
+        int slot = allocateSlot();
+        if (slot < 0) {
+            return;
+        }
+        ByteBuffer d = slot(slot);
+        d.put(data);
+
+        Block b = new Block(key, slot, data.length, mtime, fileSize);
+        b.lastReadEnd = readEnd;
+        blocks.put(key, b);
+        Block first = files.put(key.fileId, b);
+        if (first != null) {
+            b.fileNext = first;
+            first.filePrev = b;
+        }
+        probation.addFirst(b);
+    }
+
+    /** @return a free slot, evicting blocks if needed, or -1 if all are in use */
+    private int allocateSlot() {
+        while (numFreeSlots == 0) {
+            if (allocatedSlots < numSlots) {
+                int slab = allocatedSlots / slotsPerSlab;
+                int n = Math.min(slotsPerSlab, numSlots - allocatedSlots);
+                slabs[slab] = ByteBuffer.allocateDirect(n * blockSize);
+                for (int i = n - 1; i >= 0; i--) {
+                    freeSlots[numFreeSlots++] = allocatedSlots + i;
+                }
+                allocatedSlots += n;
+                break;
+            }
+            Block victim = probation.tail != null ? probation.tail
+                    : protectedSegment.tail;
+            if (victim == null) {
+                // Every block is removed but still being read
+                return -1;
+            }
+            remove(victim);
+            metrics.incrBlockCacheEvictions();
+        }
+        return freeSlots[--numFreeSlots];
+    }
+
+    private void remove(Block b) {
+        blocks.remove(b.key);
+        if (b.isProtected) {
+            protectedSegment.remove(b);
+        } else {
+            probation.remove(b);
+        }
+        if (b.filePrev != null) {
+            b.filePrev.fileNext = b.fileNext;
+        } else if (b.fileNext != null) {
+            files.put(b.key.fileId, b.fileNext);
+        } else {
+            files.remove(b.key.fileId);
+        }
+        if (b.fileNext != null) {
+            b.fileNext.filePrev = b.filePrev;
+        }
+        b.removed = true;
+        if (b.refCount == 0) {
+            freeSlots[numFreeSlots++] = b.slot;
+        }
+    }
+
+    /** Drop the blocks of a file that has been changed */
+    synchronized void invalidate(long fileId) {
+        Block b = files.get(fileId);
+        while (b != null) {
+            Block next = b.fileNext;
+            remove(b);
+            b = next;
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return blocks.size();
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of directory entries for LOOKUP. It maps (directory fileId, name) to
+ * the fileId of the child, or records that the name doesn't exist.
+ * <p>
+ * An entry remembers the mtime the directory had when the entry was resolved,
+ * and is only used while the directory still has that mtime, so changes made
+ * by other clients of the backend are noticed as soon as the directory
+ * attributes are refreshed. The handlers also invalidate the names they
+ * create, remove or rename.
+ */
+class Nfs3DentryCache {
+    private static final Log LOG = LogFactory.getLog(Nfs3DentryCache.class);
+
+    /** fileId of a negative entry */
+    static final long NONEXISTENT = -1;
+
+    private static final class Key {
+        private final long dirFileId;
+        private final String name;
+
+        Key(long dirFileId, String name) {
+            this.dirFileId = dirFileId;
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (dirFileId ^ (dirFileId >>> 32)) * 31 + name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return dirFileId == other.dirFileId && name.equals(other.name);
+        }
+    }
+
+    private static final class Dentry {
+        private final long fileId;
+        private final long dirMtime;
+
+        Dentry(long fileId, long dirMtime) {
+            this.fileId = fileId;
+            this.dirMtime = dirMtime;
+        }
+    }
+
+    /** null if the cache is disabled */
+    private final Cache<Key, Dentry> cache;
+
+    Nfs3DentryCache(NfsConfiguration config) {
+        long ttl = config.getLong(NfsConfigKeys.DFS_NFS_DENTRY_CACHE_TTL_MILLIS_KEY,
+                NfsConfigKeys.DFS_NFS_DENTRY_CACHE_TTL_MILLIS_DEFAULT);
+        int maxEntries = config.getInt(NfsConfigKeys.DFS_NFS_DENTRY_CACHE_SIZE_KEY,
+                NfsConfigKeys.DFS_NFS_DENTRY_CACHE_SIZE_DEFAULT);
+        if (ttl <= 0 || maxEntries <= 0) {
+            LOG.info("Directory entry cache is disabled");
+            cache = null;
+        } else {
+            LOG.info("Directory entry cache size is " + maxEntries + ", ttl is "
+                    + ttl + "ms");
+            cache = CacheBuilder.newBuilder()
+                    .maximumSize(maxEntries)
+                    .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+    }
+
+    /**
+     * @param dirAttr current attributes of the directory
+     * @return the fileId of the child, {@link #NONEXISTENT} if the name is known
+     * not to exist, or null if the entry is not cached or the directory has
+     * changed since
+     */
+    Long get(Nfs3FileAttributes dirAttr, String name) {
+        if (cache == null) {
+            return null;
+        }
+        Key key = new Key(dirAttr.getFileId(), name);
+        Dentry d = cache.getIfPresent(key);
+        if (d == null) {
+            return null;
+        }
+        if (d.dirMtime != dirAttr.getMtime().getMilliSeconds()) {
+            cache.invalidate(key);
+            return null;
+        }
+        return d.fileId;
+    }
+
+    /** Cache the child found under the name, or a negative entry if attr is null */
+    void put(Nfs3FileAttributes dirAttr, String name, Nfs3FileAttributes attr) {
+        if (cache != null) {
+            cache.put(new Key(dirAttr.getFileId(), name), new Dentry(
+                    attr == null ? NONEXISTENT : attr.getFileId(),
+                    dirAttr.getMtime().getMilliSeconds()));
+        }
+    }
+
+    void invalidate(FileHandle dirHandle, String name) {
+        if (cache != null) {
+            cache.invalidate(new Key(dirHandle.getFileId(), name));
+        }
+    }
+
+    @VisibleForTesting
+    long size() {
+        return cache == null ? 0 : cache.size();
+    }
+}
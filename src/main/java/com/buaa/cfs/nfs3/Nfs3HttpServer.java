@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.common.oncrpc.RpcCallCache;
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.buaa.cfs.utils.JvmPauseMonitor;
+import com.buaa.cfs.utils.NetUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encapsulates the HTTP server started by the NFS3 gateway. It serves the state
+ * of the gateway as JSON at /status: the metrics, the open file streams with
+ * their pending writes, the write back queue, the duplicate request cache and
+ * the JVM pause monitor.
+ */
+class Nfs3HttpServer {
+    static final Log LOG = LogFactory.getLog(Nfs3HttpServer.class);
+
+    private static final int MAX_THREADS = 4;
+
+    private final NfsConfiguration conf;
+    private final RpcProgramNfs3 rpcProgram;
+    private Server server;
+    private int infoPort;
+
+    Nfs3HttpServer(NfsConfiguration conf, RpcProgramNfs3 rpcProgram) {
+        this.conf = conf;
+        this.rpcProgram = rpcProgram;
+    }
+
+    void start() throws IOException {
+        final InetSocketAddress httpAddr = getHttpAddress(conf);
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost(httpAddr.getHostName());
+        connector.setPort(httpAddr.getPort());
+
+        QueuedThreadPool threadPool = new QueuedThreadPool(MAX_THREADS);
+        threadPool.setName("nfs3-http");
+        threadPool.setDaemon(true);
+
+        server = new Server();
+        server.addConnector(connector);
+        server.setThreadPool(threadPool);
+        Context context = new Context(server, "/", Context.NO_SESSIONS);
+        context.addServlet(new ServletHolder(new StatusServlet()), "/status");
+
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new IOException("Failed to start the NFS3 http server on "
+                    + httpAddr, e);
+        }
+        infoPort = connector.getLocalPort();
+        LOG.info("NFS3 http server started at " + httpAddr.getHostName() + ":"
+                + infoPort);
+    }
+
+    void stop() throws IOException {
+        if (server != null) {
+            try {
+                server.stop();
+            } catch (Exception e) {
+                throw new IOException("Failed to stop the NFS3 http server", e);
+            }
+        }
+    }
+
+    public int getPort() {
+        return this.infoPort;
+    }
+
+    static InetSocketAddress getHttpAddress(NfsConfiguration conf) {
+        String addr = conf.get(NfsConfigKeys.NFS_HTTP_ADDRESS_KEY,
+                NfsConfigKeys.NFS_HTTP_ADDRESS_DEFAULT);
+        return NetUtils.createSocketAddr(addr, NfsConfigKeys.NFS_HTTP_PORT_DEFAULT,
+                NfsConfigKeys.NFS_HTTP_ADDRESS_KEY);
+    }
+
+    /** Collect the state of the gateway */
+    Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        if (RpcProgramNfs3.metrics != null) {
+            status.put("metrics", RpcProgramNfs3.metrics.getSnapshot());
+        }
+
+        WriteManager writeManager = rpcProgram.getWriteManager();
+        AsyncDataService asyncDataService = writeManager.getAsyncDataService();
+        if (asyncDataService != null) {
+            Map<String, Object> writeBack = new LinkedHashMap<String, Object>();
+            writeBack.put("threads", asyncDataService.getThreads());
+            writeBack.put("queueSize", asyncDataService.getQueueSize());
+            writeBack.put("activeCount", asyncDataService.getActiveCount());
+            status.put("asyncDataService", writeBack);
+        }
+
+        WriteBufferPool writeBufferPool = writeManager.getWriteBufferPool();
+        Map<String, Object> writeBuffers = new LinkedHashMap<String, Object>();
+        writeBuffers.put("usedBytes", writeBufferPool.getUsedBytes());
+        writeBuffers.put("allocatedBytes", writeBufferPool.getAllocatedBytes());
+        writeBuffers.put("fallbacks", writeBufferPool.getFallbacks());
+        status.put("writeBuffers", writeBuffers);
+
+        WriteMemoryBudget writeMemoryBudget = writeManager.getWriteMemoryBudget();
+        Map<String, Object> writeMemory = new LinkedHashMap<String, Object>();
+        writeMemory.put("bufferedBytes", writeMemoryBudget.getBufferedBytes());
+        writeMemory.put("nonSequentialBytes",
+                writeMemoryBudget.getNonSequentialBytes());
+        writeMemory.put("spillBytes", writeMemoryBudget.getSpillBytes());
+        writeMemory.put("maxBytes", writeMemoryBudget.getMaxBytes());
+        writeMemory.put("spills", writeMemoryBudget.getSpills());
+        writeMemory.put("rejectedWrites", writeMemoryBudget.getRejectedWrites());
+        status.put("writeMemory", writeMemory);
+
+        GroupCommitter groupCommitter = writeManager.getGroupCommitter();
+        Map<String, Object> groupCommit = new LinkedHashMap<String, Object>();
+        groupCommit.put("enabled", groupCommitter.isEnabled());
+        groupCommit.put("windowMicros", groupCommitter.getWindowMicros());
+        groupCommit.put("groups", groupCommitter.getGroups());
+        groupCommit.put("commits", groupCommitter.getCommits());
+        groupCommit.put("syncs", groupCommitter.getSyncs());
+        status.put("groupCommit", groupCommit);
+
+        SpillLog spillLog = writeManager.getSpillLog();
+        if (spillLog != null) {
+            Map<String, Object> spill = new LinkedHashMap<String, Object>();
+            spill.put("segments", spillLog.getNumSegments());
+            spill.put("liveBytes", spillLog.getLiveBytes());
+            status.put("spillLog", spill);
+        }
+
+        List<Map<String, Object>> openFiles = new ArrayList<Map<String, Object>>();
+        for (Map.Entry<FileHandle, OpenFileCtx> e : writeManager
+                .getOpenFileCtxCache().getOpenFiles().entrySet()) {
+            OpenFileCtx ctx = e.getValue();
+            Map<String, Object> file = new LinkedHashMap<String, Object>();
+            file.put("fileId", e.getKey().getFileId());
+            file.put("active", ctx.getActiveState());
+            file.put("nextOffset", ctx.getNextOffset());
+            file.put("pendingWrites", ctx.getPendingWritesCount());
+            file.put("pendingBytes", ctx.getPendingWritesBytes());
+            file.put("nonSequentialBytesInMemory",
+                    ctx.getNonSequentialWriteInMemory());
+            file.put("pendingCommits", ctx.getPendingCommitsCount());
+            file.put("lastAccessTime", ctx.getLastAccessTime());
+            openFiles.add(file);
+        }
+        status.put("openFiles", openFiles);
+
+        RpcCallCache drc = rpcProgram.getRpcCallCache();
+        Map<String, Object> cache = new LinkedHashMap<String, Object>();
+        cache.put("size", drc.size());
+        cache.put("bytes", drc.getCachedBytes());
+        cache.put("hits", drc.getHits());
+        cache.put("inProgressHits", drc.getInProgressHits());
+        cache.put("misses", drc.getMisses());
+        cache.put("evictions", drc.getEvictions());
+        status.put("duplicateRequestCache", cache);
+
+        DFSClientCache clientCache = rpcProgram.getClientCache();
+        Map<String, Object> readHandles = new LinkedHashMap<String, Object>();
+        readHandles.put("open", clientCache.getOpenReadHandles());
+        readHandles.put("hits", clientCache.getReadHandleHits());
+        readHandles.put("misses", clientCache.getReadHandleMisses());
+        status.put("readHandles", readHandles);
+
+        JvmPauseMonitor pauseMonitor = rpcProgram.getPauseMonitor();
+        if (pauseMonitor != null) {
+            Map<String, Object> pauses = new LinkedHashMap<String, Object>();
+            pauses.put("numGcWarnThresholdExceeded",
+                    pauseMonitor.getNumGcWarnThreadholdExceeded());
+            pauses.put("numGcInfoThresholdExceeded",
+                    pauseMonitor.getNumGcInfoThresholdExceeded());
+            pauses.put("totalGcExtraSleepTime",
+                    pauseMonitor.getTotalGcExtraSleepTime());
+            status.put("jvmPauseMonitor", pauses);
+        }
+        return status;
+    }
+
+    private class StatusServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+        @Override
+        protected void doGet(HttpServletRequest request,
+                HttpServletResponse response) throws IOException {
+            response.setContentType("application/json; charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().write(gson.toJson(getStatus()));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.buaa.cfs.fs.DirectoryListing;
+import com.buaa.cfs.fs.HdfsFileStatus;
+import com.buaa.cfs.utils.Time;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of directory listings for paged READDIR and READDIRPLUS. A client
+ * enumerating a large directory sends one request per page, and without the
+ * cache each page costs a backend listing from the resume point.
+ * <p>
+ * There is at most one snapshot per directory. It is filled with the listings
+ * fetched from the backend as the client pages forward, and later pages, or
+ * other clients enumerating the same directory, are served from it. Since the
+ * cookie is the fileId of the last entry returned, a snapshot keeps the
+ * position of every entry it holds.
+ * <p>
+ * A snapshot is only used while the directory has the mtime it was taken at,
+ * which is also the cookie verifier handed to the client, so a change made
+ * through any backend client makes it stale. The size and mtime of an entry
+ * don't change the directory mtime though, so only the names and fileIds of a
+ * page served from a snapshot are current, not the other attributes. Snapshots also expire after the
+ * ttl, are dropped when the gateway changes the directory, and are evicted in
+ * LRU order when the total number of cached entries exceeds the limit.
+ */
+class Nfs3ListingCache {
+    /** A page served from a snapshot, see the class comment */
+    static final class CachedListing extends DirectoryListing {
+        CachedListing(HdfsFileStatus[] partialListing, int remainingEntries) {
+            super(partialListing, remainingEntries);
+        }
+    }
+
+    private static final Log LOG = LogFactory.getLog(Nfs3ListingCache.class);
+
+    private static final class Snapshot {
+        private final long mtime;
+        private final long created;
+        /** Status of "..", null if not known yet */
+        private HdfsFileStatus parent;
+        /** The entries from the beginning of the directory, null if none yet */
+        private HdfsFileStatus[] statuses;
+        private int size;
+        /** Whether the snapshot reaches the end of the directory */
+        private boolean complete;
+        /** Position of each entry by fileId, to resume from a cookie */
+        private final Map<Long, Integer> positions = new HashMap<Long, Integer>();
+
+        Snapshot(long mtime, long created) {
+            this.mtime = mtime;
+            this.created = created;
+        }
+
+        void append(HdfsFileStatus[] listing, boolean hasMore) {
+            if (statuses == null) {
+                statuses = new HdfsFileStatus[Math.max(listing.length, 16)];
+            } else if (statuses.length - size < listing.length) {
+                statuses = Arrays.copyOf(statuses,
+                        Math.max(statuses.length * 2, size + listing.length));
+            }
+            for (HdfsFileStatus fs : listing) {
+                positions.put(fs.getFileId(), size);
+                statuses[size++] = fs;
+            }
+            complete = !hasMore;
+        }
+
+        long lastFileId() {
+            return statuses[size - 1].getFileId();
+        }
+    }
+
+    private final long ttl;
+    private final int maxEntries;
+    /** Snapshots by directory fileId, in access order */
+    private final LinkedHashMap<Long, Snapshot> snapshots;
+    /** Number of entries over all the snapshots */
+    private int totalEntries;
+
+    Nfs3ListingCache(NfsConfiguration config) {
+        ttl = config.getLong(NfsConfigKeys.DFS_NFS_LISTING_CACHE_TTL_MILLIS_KEY,
+                NfsConfigKeys.DFS_NFS_LISTING_CACHE_TTL_MILLIS_DEFAULT);
+        maxEntries = config.getInt(
+                NfsConfigKeys.DFS_NFS_LISTING_CACHE_MAX_ENTRIES_KEY,
+                NfsConfigKeys.DFS_NFS_LISTING_CACHE_MAX_ENTRIES_DEFAULT);
+        if (ttl <= 0 || maxEntries <= 0) {
+            LOG.info("Directory listing cache is disabled");
+        } else {
+            LOG.info("Directory listing cache max entries is " + maxEntries
+                    + ", ttl is " + ttl + "ms");
+        }
+        snapshots = new LinkedHashMap<Long, Snapshot>(16, 0.75f, true);
+    }
+
+    private boolean isEnabled() {
+        return ttl > 0 && maxEntries > 0;
+    }
+
+    /** @return the valid snapshot of the directory, or null */
+    private Snapshot getSnapshot(long dirFileId, long mtime) {
+        Snapshot s = snapshots.get(dirFileId);
+        if (s == null) {
+            return null;
+        }
+        if (s.mtime != mtime || Time.monotonicNow() - s.created > ttl) {
+            remove(dirFileId);
+            return null;
+        }
+        return s;
+    }
+
+    private Snapshot getOrCreateSnapshot(long dirFileId, long mtime) {
+        Snapshot s = getSnapshot(dirFileId, mtime);
+        if (s == null) {
+            s = new Snapshot(mtime, Time.monotonicNow());
+            snapshots.put(dirFileId, s);
+        }
+        return s;
+    }
+
+    private void remove(long dirFileId) {
+        Snapshot s = snapshots.remove(dirFileId);
+        if (s != null) {
+            totalEntries -= s.size;
+        }
+    }
+
+    /**
+     * @param mtime current mtime of the directory
+     * @return the cached status of "..", or null
+     */
+    synchronized HdfsFileStatus getParent(long dirFileId, long mtime) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Snapshot s = getSnapshot(dirFileId, mtime);
+        return s == null ? null : s.parent;
+    }
+
+    synchronized void putParent(long dirFileId, long mtime, HdfsFileStatus parent) {
+        if (isEnabled()) {
+            getOrCreateSnapshot(dirFileId, mtime).parent = parent;
+        }
+    }
+
+    /**
+     * Get a page of the directory from the snapshot.
+     *
+     * @param mtime current mtime of the directory
+     * @param cookie fileId of the entry to resume after, 0 for the beginning
+     * @param maxEntries maximum number of entries to return
+     * @return the entries after the cookie, or null if the snapshot doesn't
+     * have them
+     */
+    synchronized DirectoryListing getListing(long dirFileId, long mtime,
+            long cookie, long maxEntries) {
+        if (!isEnabled() || maxEntries <= 0) {
+            return null;
+        }
+        Snapshot s = getSnapshot(dirFileId, mtime);
+        if (s == null || s.statuses == null) {
+            return null;
+        }
+        int start;
+        if (cookie == 0) {
+            start = 0;
+        } else {
+            Integer pos = s.positions.get(cookie);
+            if (pos == null) {
+                return null;
+            }
+            start = pos + 1;
+        }
+        int n = (int) Math.min(s.size - start, maxEntries);
+        if (n == 0 && !s.complete) {
+            return null;
+        }
+        HdfsFileStatus[] listing = Arrays.copyOfRange(s.statuses, start, start + n);
+        // The exact number of remaining entries is unknown until the snapshot
+        // is complete, all that matters to the caller is whether there are more
+        int remaining = s.size - start - n + (s.complete ? 0 : 1);
+        return new CachedListing(listing, remaining);
+    }
+
+    /**
+     * Add a listing fetched from the backend to the snapshot of the directory.
+     * A listing from the beginning starts a new snapshot, a later one is only
+     * added if it continues where the snapshot ends.
+     *
+     * @param mtime mtime of the directory when the listing was fetched
+     * @param cookie fileId of the entry the listing resumed after, 0 for the
+     * beginning
+     */
+    synchronized void addListing(long dirFileId, long mtime, long cookie,
+            DirectoryListing listing) {
+        if (!isEnabled()) {
+            return;
+        }
+        HdfsFileStatus[] partial = listing.getPartialListing();
+        Snapshot s;
+        if (cookie == 0) {
+            s = getOrCreateSnapshot(dirFileId, mtime);
+            if (s.statuses != null) {
+                // Another page from the beginning raced with this one
+                return;
+            }
+        } else {
+            s = getSnapshot(dirFileId, mtime);
+            if (s == null || s.statuses == null || s.complete
+                    || s.lastFileId() != cookie) {
+                return;
+            }
+            // The backend restarts from the beginning if the resume point is gone
+            if (partial.length > 0
+                    && s.positions.containsKey(partial[0].getFileId())) {
+                return;
+            }
+        }
+        if (s.size + partial.length > maxEntries) {
+            // Too large to be worth holding
+            remove(dirFileId);
+            return;
+        }
+        s.append(partial, listing.hasMore());
+        totalEntries += partial.length;
+        evict();
+    }
+
+    /** Evict the least recently used snapshots to stay within the limit */
+    private void evict() {
+        Iterator<Map.Entry<Long, Snapshot>> it = snapshots.entrySet().iterator();
+        while (totalEntries > maxEntries && it.hasNext()) {
+            Snapshot s = it.next().getValue();
+            totalEntries -= s.size;
+            it.remove();
+        }
+    }
+
+    /** Drop the snapshot of a directory that has been changed */
+    synchronized void invalidate(FileHandle dirHandle) {
+        remove(dirHandle.getFileId());
+    }
+
+    @VisibleForTesting
+    synchronized int getTotalEntries() {
+        return totalEntries;
+    }
+}
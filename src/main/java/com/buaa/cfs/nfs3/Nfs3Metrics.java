@@ -0,0 +1,430 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.Configuration;
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.constant.Nfs3Constant.NFSPROC3;
+import com.buaa.cfs.utils.LatencyHistogram;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is for maintaining the various NFS gateway activity statistics.
+ * <p>
+ * Every NFSv3 procedure has an operation counter and a latency histogram
+ * covering the lifetime of the gateway. For each interval configured with
+ * {@link NfsConfigKeys#NFS_METRICS_PERCENTILES_INTERVALS_KEY}, in seconds,
+ * there is also a rolling histogram whose percentiles describe the last
+ * complete interval. Latencies are recorded in nanoseconds and reported in
+ * microseconds.
+ * <p>
+ * Recording never takes a lock, so the metrics can be left on at high request
+ * rates. {@link #getSnapshot()} reads everything as a flat map.
+ */
+public class Nfs3Metrics {
+    static final Log LOG = LogFactory.getLog(Nfs3Metrics.class);
+
+    private static final double[] QUANTILES = {0.50, 0.75, 0.90, 0.95, 0.99};
+
+    private final String name;
+    private final int[] intervals;
+    private final ProcMetrics[] procs;
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesDumped = new LongAdder();
+    private final LongAdder backendWrites = new LongAdder();
+    private final LongAdder coalescedWrites = new LongAdder();
+    private final LongAdder readAheadHitBytes = new LongAdder();
+    private final LongAdder blockCacheHits = new LongAdder();
+    private final LongAdder blockCacheMisses = new LongAdder();
+    private final LongAdder blockCacheEvictions = new LongAdder();
+    private final LongAdder writeBackQueueDepth = new LongAdder();
+    private final LatencyHistogram commitWait = new LatencyHistogram();
+    private final LatencyHistogram writeBackWait = new LatencyHistogram();
+    private final LatencyHistogram writeBackTime = new LatencyHistogram();
+
+    private final ScheduledExecutorService rollover;
+
+    /** Counters of a single procedure */
+    private static class ProcMetrics {
+        final String name;
+        final LongAdder ops = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram[] windows;
+        final LatencyHistogram.Snapshot[] lastWindows;
+
+        ProcMetrics(String name, int intervals) {
+            this.name = name;
+            windows = new LatencyHistogram[intervals];
+            lastWindows = new LatencyHistogram.Snapshot[intervals];
+            for (int i = 0; i < intervals; i++) {
+                windows[i] = new LatencyHistogram();
+                lastWindows[i] = windows[i].snapshot();
+            }
+        }
+
+        void add(long latencyNanos) {
+            ops.increment();
+            latency.add(latencyNanos);
+            for (LatencyHistogram w : windows) {
+                w.add(latencyNanos);
+            }
+        }
+    }
+
+    Nfs3Metrics(String name, int[] intervals) {
+        this.name = name;
+        this.intervals = intervals;
+        NFSPROC3[] values = NFSPROC3.values();
+        procs = new ProcMetrics[values.length];
+        for (NFSPROC3 p : values) {
+            procs[p.ordinal()] = new ProcMetrics(displayName(p), intervals.length);
+        }
+
+        if (intervals.length == 0) {
+            rollover = null;
+            return;
+        }
+        rollover = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("nfs3-metrics-rollover").build());
+        for (int i = 0; i < intervals.length; i++) {
+            final int window = i;
+            rollover.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    for (ProcMetrics p : procs) {
+                        p.lastWindows[window] = p.windows[window].snapshotAndReset();
+                    }
+                }
+            }, intervals[i], intervals[i], TimeUnit.SECONDS);
+        }
+    }
+
+    public static Nfs3Metrics create(Configuration conf, String gatewayName) {
+        int[] intervals = conf.getInts(
+                NfsConfigKeys.NFS_METRICS_PERCENTILES_INTERVALS_KEY);
+        for (int interval : intervals) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Invalid "
+                        + NfsConfigKeys.NFS_METRICS_PERCENTILES_INTERVALS_KEY
+                        + ": " + interval + ", should be > 0");
+            }
+        }
+        LOG.info("Create NFS3 metrics for " + gatewayName
+                + " with percentile intervals (s): " + Arrays.toString(intervals));
+        return new Nfs3Metrics(gatewayName, intervals);
+    }
+
+    /** Stop rolling the percentile windows */
+    public void shutdown() {
+        if (rollover != null) {
+            rollover.shutdownNow();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Record a completed call of the procedure and its latency in ns */
+    public void addProcedure(NFSPROC3 proc, long latencyNanos) {
+        procs[proc.ordinal()].add(latencyNanos);
+    }
+
+    public void addGetattr(long latencyNanos) {
+        addProcedure(NFSPROC3.GETATTR, latencyNanos);
+    }
+
+    public void addSetattr(long latencyNanos) {
+        addProcedure(NFSPROC3.SETATTR, latencyNanos);
+    }
+
+    public void addLookup(long latencyNanos) {
+        addProcedure(NFSPROC3.LOOKUP, latencyNanos);
+    }
+
+    public void addAccess(long latencyNanos) {
+        addProcedure(NFSPROC3.ACCESS, latencyNanos);
+    }
+
+    public void addReadlink(long latencyNanos) {
+        addProcedure(NFSPROC3.READLINK, latencyNanos);
+    }
+
+    public void addRead(long latencyNanos) {
+        addProcedure(NFSPROC3.READ, latencyNanos);
+    }
+
+    public void addWrite(long latencyNanos) {
+        addProcedure(NFSPROC3.WRITE, latencyNanos);
+    }
+
+    public void addCreate(long latencyNanos) {
+        addProcedure(NFSPROC3.CREATE, latencyNanos);
+    }
+
+    public void addMkdir(long latencyNanos) {
+        addProcedure(NFSPROC3.MKDIR, latencyNanos);
+    }
+
+    public void addSymlink(long latencyNanos) {
+        addProcedure(NFSPROC3.SYMLINK, latencyNanos);
+    }
+
+    public void addMknod(long latencyNanos) {
+        addProcedure(NFSPROC3.MKNOD, latencyNanos);
+    }
+
+    public void addRemove(long latencyNanos) {
+        addProcedure(NFSPROC3.REMOVE, latencyNanos);
+    }
+
+    public void addRmdir(long latencyNanos) {
+        addProcedure(NFSPROC3.RMDIR, latencyNanos);
+    }
+
+    public void addRename(long latencyNanos) {
+        addProcedure(NFSPROC3.RENAME, latencyNanos);
+    }
+
+    public void addLink(long latencyNanos) {
+        addProcedure(NFSPROC3.LINK, latencyNanos);
+    }
+
+    public void addReaddir(long latencyNanos) {
+        addProcedure(NFSPROC3.READDIR, latencyNanos);
+    }
+
+    public void addReaddirplus(long latencyNanos) {
+        addProcedure(NFSPROC3.READDIRPLUS, latencyNanos);
+    }
+
+    public void addFsstat(long latencyNanos) {
+        addProcedure(NFSPROC3.FSSTAT, latencyNanos);
+    }
+
+    public void addFsinfo(long latencyNanos) {
+        addProcedure(NFSPROC3.FSINFO, latencyNanos);
+    }
+
+    public void addPathconf(long latencyNanos) {
+        addProcedure(NFSPROC3.PATHCONF, latencyNanos);
+    }
+
+    public void addCommit(long latencyNanos) {
+        addProcedure(NFSPROC3.COMMIT, latencyNanos);
+    }
+
+    /** Time a COMMIT waited for the data to be flushed, in ns */
+    public void addCommitWait(long latencyNanos) {
+        commitWait.add(latencyNanos);
+    }
+
+    /** Time a write back task waited in the queue, in ns */
+    public void addWriteBackWait(long latencyNanos) {
+        writeBackWait.add(latencyNanos);
+    }
+
+    /** Time a write back task ran, in ns */
+    public void addWriteBackTime(long latencyNanos) {
+        writeBackTime.add(latencyNanos);
+    }
+
+    public void incrBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void incrBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void incrBytesDumped(long bytes) {
+        bytesDumped.add(bytes);
+    }
+
+    /** A write to the backend covering the given number of WRITE requests */
+    public void incrBackendWrites(int requests) {
+        backendWrites.increment();
+        coalescedWrites.add(requests - 1);
+    }
+
+    /** Bytes of READs served from read-ahead */
+    public void incrReadAheadHitBytes(long bytes) {
+        readAheadHitBytes.add(bytes);
+    }
+
+    /** A block of a READ was found in the block cache */
+    public void incrBlockCacheHits() {
+        blockCacheHits.increment();
+    }
+
+    /** A block of a READ was loaded from the backend into the block cache */
+    public void incrBlockCacheMisses() {
+        blockCacheMisses.increment();
+    }
+
+    public void incrBlockCacheEvictions() {
+        blockCacheEvictions.increment();
+    }
+
+    /** A write back task has been queued */
+    public void incrWriteBackQueued() {
+        writeBackQueueDepth.increment();
+    }
+
+    /** A queued write back task has started */
+    public void decrWriteBackQueued() {
+        writeBackQueueDepth.decrement();
+    }
+
+    public long getOps(NFSPROC3 proc) {
+        return procs[proc.ordinal()].ops.sum();
+    }
+
+    /** Latency of the procedure since the gateway started */
+    public LatencyHistogram.Snapshot getLatency(NFSPROC3 proc) {
+        return procs[proc.ordinal()].latency.snapshot();
+    }
+
+    /**
+     * Latency of the procedure over the last complete window of
+     * intervals()[window] seconds
+     */
+    public LatencyHistogram.Snapshot getWindowLatency(NFSPROC3 proc, int window) {
+        return procs[proc.ordinal()].lastWindows[window];
+    }
+
+    public int[] getIntervals() {
+        return intervals.clone();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getBytesDumped() {
+        return bytesDumped.sum();
+    }
+
+    public long getBackendWrites() {
+        return backendWrites.sum();
+    }
+
+    /** WRITE requests written back as part of another request's backend write */
+    public long getCoalescedWrites() {
+        return coalescedWrites.sum();
+    }
+
+    public long getReadAheadHitBytes() {
+        return readAheadHitBytes.sum();
+    }
+
+    public long getBlockCacheHits() {
+        return blockCacheHits.sum();
+    }
+
+    public long getBlockCacheMisses() {
+        return blockCacheMisses.sum();
+    }
+
+    public long getBlockCacheEvictions() {
+        return blockCacheEvictions.sum();
+    }
+
+    public long getWriteBackQueueDepth() {
+        return writeBackQueueDepth.sum();
+    }
+
+    public LatencyHistogram.Snapshot getCommitWait() {
+        return commitWait.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getWriteBackWait() {
+        return writeBackWait.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getWriteBackTime() {
+        return writeBackTime.snapshot();
+    }
+
+    /**
+     * All metrics by name, e.g. GetattrNumOps, GetattrAvgTimeUs and
+     * Getattr60s99thPercentileLatencyUs. Procedures never called are left out.
+     */
+    public Map<String, Number> getSnapshot() {
+        Map<String, Number> m = new LinkedHashMap<String, Number>();
+        m.put("BytesRead", getBytesRead());
+        m.put("BytesWritten", getBytesWritten());
+        m.put("BytesDumped", getBytesDumped());
+        m.put("BackendWrites", getBackendWrites());
+        m.put("CoalescedWrites", getCoalescedWrites());
+        m.put("ReadAheadHitBytes", getReadAheadHitBytes());
+        m.put("BlockCacheHits", getBlockCacheHits());
+        m.put("BlockCacheMisses", getBlockCacheMisses());
+        m.put("BlockCacheEvictions", getBlockCacheEvictions());
+        m.put("WriteBackQueueDepth", getWriteBackQueueDepth());
+        putLatency(m, "CommitWait", getCommitWait());
+        putLatency(m, "WriteBackWait", getWriteBackWait());
+        putLatency(m, "WriteBack", getWriteBackTime());
+
+        for (ProcMetrics p : procs) {
+            long ops = p.ops.sum();
+            if (ops == 0) {
+                continue;
+            }
+            m.put(p.name + "NumOps", ops);
+            putLatency(m, p.name, p.latency.snapshot());
+            for (int i = 0; i < intervals.length; i++) {
+                LatencyHistogram.Snapshot s = p.lastWindows[i];
+                String prefix = p.name + intervals[i] + "s";
+                m.put(prefix + "NumOps", s.getCount());
+                for (double q : QUANTILES) {
+                    m.put(prefix + (int) (q * 100) + "thPercentileLatencyUs",
+                            toMicros(s.getQuantile(q)));
+                }
+            }
+        }
+        return m;
+    }
+
+    private static void putLatency(Map<String, Number> m, String prefix,
+            LatencyHistogram.Snapshot s) {
+        m.put(prefix + "AvgTimeUs", s.getMean() / 1000);
+        m.put(prefix + "MaxTimeUs", toMicros(s.getMax()));
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String displayName(NFSPROC3 proc) {
+        String s = proc.name();
+        return s.charAt(0) + s.substring(1).toLowerCase();
+    }
+}
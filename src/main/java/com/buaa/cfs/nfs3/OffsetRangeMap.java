@@ -0,0 +1,317 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from file ranges [min, max) to values, ordered by min then max, kept
+ * in primitive arrays so adding an entry allocates no key object. It replaces
+ * the skip lists of {@link OffsetRange} and boxed offsets for the pending
+ * writes and commits of an {@link OpenFileCtx}.
+ * <p>
+ * The entries are in a sorted ring: the writes mostly arrive in order and are
+ * taken from the lowest offset, so entries are added at the tail and removed
+ * at the head without moving the others. An entry out of order is inserted by
+ * shifting the shorter side of the ring. The ranges may overlap, the longest
+ * range bounds the search of the ranges overlapping an offset.
+ * <p>
+ * All the methods are synchronized on the map, they are short and don't call
+ * out, so readers don't need the lock of the file.
+ */
+class OffsetRangeMap<V> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mins;
+    private long[] maxs;
+    private Object[] values;
+    /** Physical index of the first entry */
+    private int head;
+    private volatile int size;
+    /** Sum of the range lengths */
+    private volatile long totalLength;
+    /** The longest range since the map was last empty */
+    private long maxLength;
+
+    OffsetRangeMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mins = new long[capacity];
+        maxs = new long[capacity];
+        values = new Object[capacity];
+        head = 0;
+    }
+
+    /** Physical index of the i-th entry */
+    private int index(int i) {
+        return (head + i) & (mins.length - 1);
+    }
+
+    private static int compare(long min1, long max1, long min2, long max2) {
+        if (min1 != min2) {
+            return min1 < min2 ? -1 : 1;
+        }
+        return max1 < max2 ? -1 : (max1 == max2 ? 0 : 1);
+    }
+
+    /** @return the position of the first entry not less than [min, max) */
+    private int search(long min, long max) {
+        int lo = 0;
+        int hi = size;
+        // Most lookups are at the tail
+        if (hi > 0) {
+            int last = index(hi - 1);
+            if (compare(mins[last], maxs[last], min, max) < 0) {
+                return hi;
+            }
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int m = index(mid);
+            if (compare(mins[m], maxs[m], min, max) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private boolean matches(int pos, long min, long max) {
+        if (pos >= size) {
+            return false;
+        }
+        int i = index(pos);
+        return mins[i] == min && maxs[i] == max;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int pos) {
+        return (V) values[index(pos)];
+    }
+
+    synchronized V get(long min, long max) {
+        int pos = search(min, max);
+        return matches(pos, min, max) ? valueAt(pos) : null;
+    }
+
+    /**
+     * Map [min, max) to value.
+     *
+     * @return the value it replaced, null if the range was not in the map
+     */
+    synchronized V put(long min, long max, V value) {
+        Preconditions.checkArgument(min >= 0 && min < max,
+                "Invalid range [" + min + ", " + max + ")");
+        int pos = search(min, max);
+        if (matches(pos, min, max)) {
+            int i = index(pos);
+            @SuppressWarnings("unchecked")
+            V old = (V) values[i];
+            values[i] = value;
+            return old;
+        }
+        if (size == mins.length) {
+            grow();
+        }
+        int s = size;
+        int i;
+        if (pos == s) {
+            i = index(s);
+        } else if (pos == 0) {
+            head = (head - 1) & (mins.length - 1);
+            i = head;
+        } else if (pos < s - pos) {
+            // Shift the head side one slot down
+            head = (head - 1) & (mins.length - 1);
+            for (int k = 0; k < pos; k++) {
+                move(index(k + 1), index(k));
+            }
+            i = index(pos);
+        } else {
+            // Shift the tail side one slot up
+            for (int k = s; k > pos; k--) {
+                move(index(k - 1), index(k));
+            }
+            i = index(pos);
+        }
+        mins[i] = min;
+        maxs[i] = max;
+        values[i] = value;
+        size = s + 1;
+        totalLength += max - min;
+        maxLength = Math.max(maxLength, max - min);
+        return null;
+    }
+
+    private void move(int from, int to) {
+        mins[to] = mins[from];
+        maxs[to] = maxs[from];
+        values[to] = values[from];
+    }
+
+    private void grow() {
+        long[] oldMins = mins;
+        long[] oldMaxs = maxs;
+        Object[] oldValues = values;
+        int oldHead = head;
+        int n = size;
+        int mask = oldMins.length - 1;
+        allocate(oldMins.length << 1);
+        for (int k = 0; k < n; k++) {
+            int from = (oldHead + k) & mask;
+            mins[k] = oldMins[from];
+            maxs[k] = oldMaxs[from];
+            values[k] = oldValues[from];
+        }
+    }
+
+    /** @return the value removed, null if the range was not in the map */
+    synchronized V remove(long min, long max) {
+        int pos = search(min, max);
+        if (!matches(pos, min, max)) {
+            return null;
+        }
+        return removeAt(pos);
+    }
+
+    private V removeAt(int pos) {
+        V value = valueAt(pos);
+        int i = index(pos);
+        long length = maxs[i] - mins[i];
+        int s = size;
+        if (pos < s - 1 - pos) {
+            // Shift the head side one slot up
+            for (int k = pos; k > 0; k--) {
+                move(index(k - 1), index(k));
+            }
+            values[head] = null;
+            head = (head + 1) & (mins.length - 1);
+        } else {
+            // Shift the tail side one slot down
+            for (int k = pos; k < s - 1; k++) {
+                move(index(k + 1), index(k));
+            }
+            values[index(s - 1)] = null;
+        }
+        size = s - 1;
+        totalLength -= length;
+        if (s == 1) {
+            maxLength = 0;
+            if (mins.length > INITIAL_CAPACITY) {
+                // Don't hold on to the arrays of a burst
+                allocate(INITIAL_CAPACITY);
+            }
+        }
+        return value;
+    }
+
+    /** @return the value of the lowest range, null if empty */
+    synchronized V first() {
+        return size == 0 ? null : valueAt(0);
+    }
+
+    /** @return the min of the lowest range, -1 if empty */
+    synchronized long firstMin() {
+        return size == 0 ? -1 : mins[head];
+    }
+
+    /** @return the max of the lowest range, -1 if empty */
+    synchronized long firstMax() {
+        return size == 0 ? -1 : maxs[head];
+    }
+
+    /** Remove the lowest range, @return its value, null if empty */
+    synchronized V pollFirst() {
+        return size == 0 ? null : removeAt(0);
+    }
+
+    /**
+     * Remove the lowest range if its min is at most limit.
+     *
+     * @return its value, null if empty or the lowest range starts above limit
+     */
+    synchronized V pollFirstUpTo(long limit) {
+        return size == 0 || mins[head] > limit ? null : removeAt(0);
+    }
+
+    /** @return the max of the highest range, -1 if empty */
+    synchronized long lastMax() {
+        return size == 0 ? -1 : maxs[index(size - 1)];
+    }
+
+    /**
+     * @return the end of the ranges that follow each other without a hole
+     * from offset, offset itself if no range starts there
+     */
+    synchronized long getContiguousEnd(long offset) {
+        for (int k = 0; k < size; k++) {
+            int i = index(k);
+            if (mins[i] != offset) {
+                break;
+            }
+            offset = maxs[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Add the values of the ranges overlapping [from, to) to out, in range
+     * order.
+     */
+    synchronized void getOverlapping(long from, long to, List<V> out) {
+        if (size == 0) {
+            return;
+        }
+        // A range starting before this can't reach from
+        int pos = search(from - maxLength + 1, Long.MIN_VALUE);
+        for (; pos < size; pos++) {
+            int i = index(pos);
+            if (mins[i] >= to) {
+                break;
+            }
+            if (maxs[i] > from) {
+                @SuppressWarnings("unchecked")
+                V v = (V) values[i];
+                out.add(v);
+            }
+        }
+    }
+
+    /** @return the values in range order */
+    synchronized List<V> values() {
+        List<V> l = new ArrayList<V>(size);
+        for (int k = 0; k < size; k++) {
+            l.add(valueAt(k));
+        }
+        return l;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Sum of the lengths of the ranges */
+    long getTotalLength() {
+        return totalLength;
+    }
+}
@@ -35,10 +35,9 @@ import org.jboss.netty.channel.Channel;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -75,6 +74,12 @@ class OpenFileCtx {
 
     private final DFSClient client;
     private final IdMappingServiceProvider iug;
+    /** Attribute cache to keep up to date with latestAttr, can be null */
+    private final Nfs3AttrCache attrCache;
+    /** Pool for the data of buffered writes, can be null */
+    private final WriteBufferPool writeBufferPool;
+    /** Gateway-wide accounting of the buffered writes, can be null */
+    private final WriteMemoryBudget writeMemoryBudget;
 
     // The stream status. False means the stream is closed.
     private volatile boolean activeState;
@@ -94,9 +99,11 @@ class OpenFileCtx {
     // It's updated after each sync to HDFS
     private Nfs3FileAttributes latestAttr;
 
-    private final ConcurrentNavigableMap<OffsetRange, WriteCtx> pendingWrites;
+    /** The writes waiting to be written back, by their range in the file */
+    private final OffsetRangeMap<WriteCtx> pendingWrites;
 
-    private final ConcurrentNavigableMap<Long, CommitCtx> pendingCommits;
+    /** The commits waiting for their data, by [offset, offset + 1) */
+    private final OffsetRangeMap<CommitCtx> pendingCommits;
 
     static class CommitCtx {
         private final long offset;
@@ -104,6 +111,7 @@ class OpenFileCtx {
         private final int xid;
         private final Nfs3FileAttributes preOpAttr;
 
+        /** When the commit was queued in pendingCommits */
         public final long startTime;
 
         long getOffset() {
@@ -147,15 +155,18 @@ class OpenFileCtx {
     private long lastAccessTime;
 
     private volatile boolean enabledDump;
-    private FileOutputStream dumpOut;
+    /** Set to dump all the non-sequential writes regardless of the water mark */
+    private volatile boolean dumpRequested;
 
     /** Tracks the data buffered in memory related to non sequential writes */
     private AtomicLong nonSequentialWriteInMemory;
 
-    private RandomAccessFile raf;
-    private final String dumpFilePath;
+    /** The log shared by all the files to dump to, null if dumping is disabled */
+    private final SpillLog spillLog;
     private Daemon dumpThread;
     private final boolean uploadLargeFile;
+    /** Max bytes of contiguous writes written back together */
+    private final int coalesceMaxBytes;
 
     private void updateLastAccessTime() {
         lastAccessTime = Time.monotonicNow();
@@ -181,6 +192,71 @@ class OpenFileCtx {
         return (pendingWrites.size() != 0 || pendingCommits.size() != 0);
     }
 
+    int getPendingWritesCount() {
+        return pendingWrites.size();
+    }
+
+    /** Bytes of the writes waiting to be written back, in memory or dumped */
+    long getPendingWritesBytes() {
+        return pendingWrites.getTotalLength();
+    }
+
+    /**
+     * Get the pending writes that overlap the range [offset, offset + count), so
+     * a read can be served from them before they are written back. The writes
+     * are retained and must be released by the caller. A write that is done by
+     * the time it would be retained is left out, its data is below nextOffset.
+     *
+     * @return the overlapping writes in offset order
+     */
+    List<WriteCtx> getPendingWrites(long offset, int count) {
+        List<WriteCtx> writes = new ArrayList<WriteCtx>();
+        pendingWrites.getOverlapping(offset, offset + count, writes);
+        Iterator<WriteCtx> it = writes.iterator();
+        while (it.hasNext()) {
+            if (!it.next().retain()) {
+                it.remove();
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * Copy the data of the writes over what has been read from the backend for
+     * the file range starting at offset. The read is extended as long as the
+     * writes continue it without a hole.
+     *
+     * @param writes     the writes from {@link #getPendingWrites(long, int)}
+     * @param buf        the read buffer of count bytes, of which readCount
+     *                   bytes are valid
+     *
+     * @return the new number of valid bytes in buf
+     */
+    static int readPendingWrites(List<WriteCtx> writes, long offset, byte[] buf,
+            int count, int readCount) throws IOException {
+        long end = offset + count;
+        for (WriteCtx writeCtx : writes) {
+            long from = Math.max(writeCtx.getOffset(), offset);
+            long to = Math.min(writeCtx.getOffset() + writeCtx.getCount(), end);
+            if (from >= to) {
+                continue;
+            }
+            writeCtx.readData(from, buf, (int) (from - offset), (int) (to - from));
+            if (from <= offset + readCount) {
+                readCount = Math.max(readCount, (int) (to - offset));
+            }
+        }
+        return readCount;
+    }
+
+    int getPendingCommitsCount() {
+        return pendingCommits.size();
+    }
+
+    long getNonSequentialWriteInMemory() {
+        return nonSequentialWriteInMemory.get();
+    }
+
     /** Increase or decrease the memory occupation of non-sequential writes */
     private long updateNonSequentialWriteInMemory(long count) {
         long newValue = nonSequentialWriteInMemory.addAndGet(count);
@@ -192,9 +268,47 @@ class OpenFileCtx {
         Preconditions.checkState(newValue >= 0,
                 "nonSequentialWriteInMemory is negative " + newValue
                         + " after update with count " + count);
+        if (writeMemoryBudget != null) {
+            writeMemoryBudget.addNonSequential(this, count);
+        }
         return newValue;
     }
 
+    /**
+     * Ask the dumper to dump all the non-sequential writes in memory, whatever
+     * the water mark, to relieve the gateway-wide memory pressure.
+     *
+     * @return false if the file can't dump
+     */
+    boolean requestDump() {
+        if (!enabledDump || !activeState) {
+            return false;
+        }
+        synchronized (this) {
+            dumpRequested = true;
+            if (dumpThread == null) {
+                dumpThread = new Daemon(new Dumper());
+                dumpThread.start();
+            } else {
+                this.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /** The write is not going to be written back, stop accounting for it */
+    private void dropWrite(WriteCtx writeCtx) {
+        if (writeCtx.getDataState() == WriteCtx.DataState.ALLOW_DUMP) {
+            synchronized (writeCtx) {
+                if (writeCtx.getDataState() == WriteCtx.DataState.ALLOW_DUMP) {
+                    writeCtx.setDataState(WriteCtx.DataState.NO_DUMP);
+                    updateNonSequentialWriteInMemory(-writeCtx.getCount());
+                }
+            }
+        }
+        writeCtx.release();
+    }
+
     OpenFileCtx(DataOutputStream fos, Nfs3FileAttributes latestAttr,
             String dumpFilePath, DFSClient client, IdMappingServiceProvider iug) {
         this(fos, latestAttr, dumpFilePath, client, iug, false,
@@ -204,27 +318,45 @@ class OpenFileCtx {
     OpenFileCtx(DataOutputStream fos, Nfs3FileAttributes latestAttr,
             String dumpFilePath, DFSClient client, IdMappingServiceProvider iug,
             boolean aixCompatMode, NfsConfiguration config) {
+        this(fos, latestAttr, dumpFilePath, client, iug, aixCompatMode, config,
+                null);
+    }
+
+    OpenFileCtx(DataOutputStream fos, Nfs3FileAttributes latestAttr,
+            String dumpFilePath, DFSClient client, IdMappingServiceProvider iug,
+            boolean aixCompatMode, NfsConfiguration config,
+            Nfs3AttrCache attrCache) {
+        this(fos, latestAttr, dumpFilePath == null ? null : new SpillLog(
+                new File(dumpFilePath).getAbsoluteFile().getParent(), config),
+                client, iug, aixCompatMode, config, attrCache, null, null);
+    }
+
+    /**
+     * @param spillLog the log to dump the non-sequential writes to, null to
+     *                 disable dumping
+     */
+    OpenFileCtx(DataOutputStream fos, Nfs3FileAttributes latestAttr,
+            SpillLog spillLog, DFSClient client, IdMappingServiceProvider iug,
+            boolean aixCompatMode, NfsConfiguration config,
+            Nfs3AttrCache attrCache, WriteBufferPool writeBufferPool,
+            WriteMemoryBudget writeMemoryBudget) {
         this.fos = fos;
         this.latestAttr = latestAttr;
         this.aixCompatMode = aixCompatMode;
-        // We use the ReverseComparatorOnMin as the comparator of the map. In this
-        // way, we first dump the data with larger offset. In the meanwhile, we
-        // retrieve the last element to write back to HDFS.
-        pendingWrites = new ConcurrentSkipListMap<OffsetRange, WriteCtx>(
-                OffsetRange.ReverseComparatorOnMin);
+        // The first element is the next to write back to HDFS, the data with
+        // larger offset is dumped first.
+        pendingWrites = new OffsetRangeMap<WriteCtx>();
 
-        pendingCommits = new ConcurrentSkipListMap<Long, CommitCtx>();
+        pendingCommits = new OffsetRangeMap<CommitCtx>();
 
         updateLastAccessTime();
         activeState = true;
         asyncStatus = false;
         asyncWriteBackStartOffset = 0;
-        dumpOut = null;
-        raf = null;
         nonSequentialWriteInMemory = new AtomicLong(0);
 
-        this.dumpFilePath = dumpFilePath;
-        enabledDump = dumpFilePath != null;
+        this.spillLog = spillLog;
+        enabledDump = spillLog != null;
         nextOffset = new AtomicLong();
         nextOffset.set(latestAttr.getSize());
 //        try {
@@ -234,8 +366,14 @@ class OpenFileCtx {
         dumpThread = null;
         this.client = client;
         this.iug = iug;
+        this.attrCache = attrCache;
+        this.writeBufferPool = writeBufferPool;
+        this.writeMemoryBudget = writeMemoryBudget;
         this.uploadLargeFile = config.getBoolean(NfsConfigKeys.LARGE_FILE_UPLOAD,
                 NfsConfigKeys.LARGE_FILE_UPLOAD_DEFAULT);
+        this.coalesceMaxBytes = config.getInt(
+                NfsConfigKeys.DFS_NFS_WRITE_COALESCE_MAX_BYTES_KEY,
+                NfsConfigKeys.DFS_NFS_WRITE_COALESCE_MAX_BYTES_DEFAULT);
     }
 
     public Nfs3FileAttributes getLatestAttr() {
@@ -286,63 +424,27 @@ class OpenFileCtx {
     }
 
     class Dumper implements Runnable {
-        /** Dump data into a file */
+        /** Dump data into the spill log */
         private void dump() {
-            // Create dump outputstream for the first time
-            if (dumpOut == null) {
-                LOG.info("Create dump file: " + dumpFilePath);
-                File dumpFile = new File(dumpFilePath);
-                try {
-                    synchronized (this) {
-                        // check if alive again
-                        Preconditions.checkState(dumpFile.createNewFile(),
-                                "The dump file should not exist: %s", dumpFilePath);
-                        dumpOut = new FileOutputStream(dumpFile);
-                    }
-                } catch (IOException e) {
-                    LOG.error("Got failure when creating dump stream " + dumpFilePath, e);
-                    enabledDump = false;
-                    if (dumpOut != null) {
-                        try {
-                            dumpOut.close();
-                        } catch (IOException e1) {
-                            LOG.error("Can't close dump stream " + dumpFilePath, e);
-                        }
-                    }
-                    return;
-                }
-            }
-
-            // Get raf for the first dump
-            if (raf == null) {
-                try {
-                    raf = new RandomAccessFile(dumpFilePath, "r");
-                } catch (FileNotFoundException e) {
-                    LOG.error("Can't get random access to file " + dumpFilePath);
-                    // Disable dump
-                    enabledDump = false;
-                    return;
-                }
-            }
-
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Start dump. Before dump, nonSequentialWriteInMemory == "
                         + nonSequentialWriteInMemory.get());
             }
 
-            Iterator<OffsetRange> it = pendingWrites.keySet().iterator();
-            while (activeState && it.hasNext()
-                    && nonSequentialWriteInMemory.get() > 0) {
-                OffsetRange key = it.next();
-                WriteCtx writeCtx = pendingWrites.get(key);
-                if (writeCtx == null) {
+            List<WriteCtx> writes = pendingWrites.values();
+            for (int i = writes.size() - 1; activeState && i >= 0
+                    && nonSequentialWriteInMemory.get() > 0; i--) {
+                WriteCtx writeCtx = writes.get(i);
+                if (pendingWrites.get(writeCtx.getOffset(), writeCtx.getOffset()
+                        + writeCtx.getCount()) != writeCtx) {
                     // This write was just deleted
                     continue;
                 }
                 try {
-                    long dumpedDataSize = writeCtx.dumpData(dumpOut, raf);
+                    long dumpedDataSize = writeCtx.dumpData(spillLog);
                     if (dumpedDataSize > 0) {
                         updateNonSequentialWriteInMemory(-dumpedDataSize);
+                        RpcProgramNfs3.metrics.incrBytesDumped(dumpedDataSize);
                     }
                 } catch (IOException e) {
                     LOG.error("Dump data failed: " + writeCtx + " with error: " + e
@@ -363,11 +465,15 @@ class OpenFileCtx {
         public void run() {
             while (activeState && enabledDump) {
                 try {
-                    if (nonSequentialWriteInMemory.get() >= DUMP_WRITE_WATER_MARK) {
+                    if (nonSequentialWriteInMemory.get() >= DUMP_WRITE_WATER_MARK
+                            || dumpRequested) {
+                        // A request made during the dump gets another pass
+                        dumpRequested = false;
                         dump();
                     }
                     synchronized (OpenFileCtx.this) {
-                        if (nonSequentialWriteInMemory.get() < DUMP_WRITE_WATER_MARK) {
+                        if (nonSequentialWriteInMemory.get() < DUMP_WRITE_WATER_MARK
+                                && !dumpRequested) {
                             OpenFileCtx.this.notifyAll();
                             try {
                                 OpenFileCtx.this.wait();
@@ -375,8 +481,8 @@ class OpenFileCtx {
                                     LOG.debug("Dumper woke up");
                                 }
                             } catch (InterruptedException e) {
-                                LOG.info("Dumper is interrupted, dumpFilePath= "
-                                        + OpenFileCtx.this.dumpFilePath);
+                                LOG.info("Dumper is interrupted, fileId: "
+                                        + latestAttr.getFileId());
                             }
                         }
                     }
@@ -389,8 +495,8 @@ class OpenFileCtx {
                     synchronized (OpenFileCtx.this) {
                         OpenFileCtx.this.notifyAll();
                     }
-                    LOG.info("Dumper get Throwable: " + t + ". dumpFilePath: "
-                            + OpenFileCtx.this.dumpFilePath, t);
+                    LOG.info("Dumper get Throwable: " + t + ". fileId: "
+                            + latestAttr.getFileId(), t);
                     activeState = false;
                 }
             }
@@ -399,9 +505,8 @@ class OpenFileCtx {
 
     private WriteCtx checkRepeatedWriteRequest(WRITE3Request request,
             Channel channel, int xid) {
-        OffsetRange range = new OffsetRange(request.getOffset(),
+        WriteCtx writeCtx = pendingWrites.get(request.getOffset(),
                 request.getOffset() + request.getCount());
-        WriteCtx writeCtx = pendingWrites.get(range);
         if (writeCtx == null) {
             return null;
         } else {
@@ -543,7 +648,7 @@ class OpenFileCtx {
             WriteCtx writeCtx = new WriteCtx(request.getHandle(),
                     request.getOffset(), request.getCount(), originalCount,
                     request.getStableHow(), request.getData(), channel, xid, false,
-                    dataState);
+                    dataState, writeBufferPool, writeMemoryBudget);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Add new write to the list with nextOffset " + cachedOffset
                         + " and requested offset=" + offset);
@@ -555,7 +660,7 @@ class OpenFileCtx {
             // check if there is a WriteCtx with the same range in pendingWrites
             WriteCtx oldWriteCtx = checkRepeatedWriteRequest(request, channel, xid);
             if (oldWriteCtx == null) {
-                pendingWrites.put(new OffsetRange(offset, offset + count), writeCtx);
+                pendingWrites.put(offset, offset + count, writeCtx);
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("New write buffered with xid " + xid + " nextOffset "
                             + cachedOffset + " req offset=" + offset + " mapsize="
@@ -564,6 +669,8 @@ class OpenFileCtx {
             } else {
                 LOG.warn("Got a repeated request, same range, with xid: " + xid
                         + " nextOffset " + +cachedOffset + " req offset=" + offset);
+                // Not buffered, only its range is used from now on
+                dropWrite(writeCtx);
             }
             return writeCtx;
         }
@@ -588,7 +695,7 @@ class OpenFileCtx {
             }
             // TODO: let executor handle perfect overwrite
             response = processPerfectOverWrite(dfsClient, offset, count, stableHow,
-                    request.getData().array(),
+                    request.getData(),
                     Nfs3Utils.getFileIdPath(request.getHandle()), wccData, iug);
         }
         updateLastAccessTime();
@@ -663,8 +770,8 @@ class OpenFileCtx {
                 WccData fileWcc = new WccData(preOpAttr, latestAttr);
                 WRITE3Response response = new WRITE3Response(Nfs3Status.NFS3_OK,
                         fileWcc, count, stableHow, Nfs3Constant.WRITE_COMMIT_VERF);
-//                RpcProgramNfs3.metrics.addWrite(Nfs3Utils
-//                        .getElapsedTime(writeCtx.startTime));
+                RpcProgramNfs3.metrics.addWrite(Nfs3Utils
+                        .getElapsedTime(writeCtx.startTime));
                 Nfs3Utils
                         .writeChannel(channel, response.serialize(new XDR(),
                                 xid, new VerifierNone()), xid);
@@ -678,7 +785,7 @@ class OpenFileCtx {
      * mtime), 2) client somehow sends the same write again in a different RPC.
      */
     private WRITE3Response processPerfectOverWrite(DFSClient dfsClient,
-            long offset, int count, Nfs3Constant.WriteStableHow stableHow, byte[] data,
+            long offset, int count, Nfs3Constant.WriteStableHow stableHow, ByteBuffer data,
             String path, WccData wccData, IdMappingServiceProvider iug) {
         WRITE3Response response = null;
 
@@ -759,6 +866,19 @@ class OpenFileCtx {
      */
     public COMMIT_STATUS checkCommit(DFSClient dfsClient, long commitOffset,
             Channel channel, int xid, Nfs3FileAttributes preOpAttr, boolean fromRead) {
+        return checkCommit(dfsClient, commitOffset, channel, xid, preOpAttr,
+                fromRead, true);
+    }
+
+    /**
+     * @param doSync whether to sync the stream now when the data to commit is
+     *               flushed. If not, COMMIT_DO_SYNC is returned instead of
+     *               COMMIT_FINISHED and the caller must call
+     *               {@link #syncForCommit()}.
+     */
+    COMMIT_STATUS checkCommit(DFSClient dfsClient, long commitOffset,
+            Channel channel, int xid, Nfs3FileAttributes preOpAttr,
+            boolean fromRead, boolean doSync) {
         if (!fromRead) {
             Preconditions.checkState(channel != null && preOpAttr != null);
             // Keep stream active
@@ -774,24 +894,32 @@ class OpenFileCtx {
         // Do the sync outside the lock
         if (ret == COMMIT_STATUS.COMMIT_DO_SYNC
                 || ret == COMMIT_STATUS.COMMIT_FINISHED) {
-//            try {
-//                // Sync file data and length
-////                fos.hsync(EnumSet.of(SyncFlag.UPDATE_LENGTH));
-//                ret = COMMIT_STATUS.COMMIT_FINISHED; // Remove COMMIT_DO_SYNC status
-//                // Nothing to do for metadata since attr related change is pass-through
-//            } catch (ClosedChannelException cce) {
-//                if (pendingWrites.isEmpty()) {
-//                    ret = COMMIT_STATUS.COMMIT_FINISHED;
-//                } else {
-//                    ret = COMMIT_STATUS.COMMIT_ERROR;
-//                }
-//            } catch (IOException e) {
-//                LOG.error("Got stream error during data sync: " + e);
-//                // Do nothing. Stream will be closed eventually by StreamMonitor.
-//                // status = Nfs3Status.NFS3ERR_IO;
+            ret = doSync ? syncForCommit() : COMMIT_STATUS.COMMIT_DO_SYNC;
+        }
+        return ret;
+    }
+
+    /**
+     * Sync the data written so far and the file length.
+     *
+     * @return COMMIT_FINISHED, or COMMIT_ERROR if the sync failed
+     */
+    COMMIT_STATUS syncForCommit() {
+        COMMIT_STATUS ret = COMMIT_STATUS.COMMIT_FINISHED;
+//        try {
+//            // Sync file data and length
+//            fos.hsync(EnumSet.of(SyncFlag.UPDATE_LENGTH));
+//            // Nothing to do for metadata since attr related change is pass-through
+//        } catch (ClosedChannelException cce) {
+//            if (!pendingWrites.isEmpty()) {
 //                ret = COMMIT_STATUS.COMMIT_ERROR;
 //            }
-        }
+//        } catch (IOException e) {
+//            LOG.error("Got stream error during data sync: " + e);
+//            // Do nothing. Stream will be closed eventually by StreamMonitor.
+//            // status = Nfs3Status.NFS3ERR_IO;
+//            ret = COMMIT_STATUS.COMMIT_ERROR;
+//        }
         return ret;
     }
 
@@ -801,21 +929,8 @@ class OpenFileCtx {
             final long nextOffset) {
         Preconditions.checkState(commitOffset >= nextOffset, "commitOffset "
                 + commitOffset + " less than nextOffset " + nextOffset);
-        long offset = nextOffset;
-        Iterator<OffsetRange> it = pendingWrites.descendingKeySet().iterator();
-        while (it.hasNext()) {
-            OffsetRange range = it.next();
-            if (range.getMin() != offset) {
-                // got a hole
-                return false;
-            }
-            offset = range.getMax();
-            if (offset > commitOffset) {
-                return true;
-            }
-        }
-        // there is gap between the last pending write and commitOffset
-        return false;
+        // false if there is a hole before commitOffset
+        return pendingWrites.getContiguousEnd(nextOffset) > commitOffset;
     }
 
     private COMMIT_STATUS handleSpecialWait(boolean fromRead, long commitOffset,
@@ -823,7 +938,7 @@ class OpenFileCtx {
         if (!fromRead) {
             // let client retry the same request, add pending commit to sync later
             CommitCtx commitCtx = new CommitCtx(commitOffset, channel, xid, preOpAttr);
-            pendingCommits.put(commitOffset, commitCtx);
+            pendingCommits.put(commitOffset, commitOffset + 1, commitCtx);
         }
         if (LOG.isDebugEnabled()) {
             LOG.debug("return COMMIT_SPECIAL_WAIT");
@@ -879,8 +994,8 @@ class OpenFileCtx {
                 + " is larger than nextOffset " + nextOffset.get());
         // Handle large file upload
         if (uploadLargeFile && !aixCompatMode) {
-            long co = (commitOffset > 0) ? commitOffset : pendingWrites.firstEntry()
-                    .getKey().getMax() - 1;
+            long co = (commitOffset > 0) ? commitOffset
+                    : pendingWrites.lastMax() - 1;
 
             if (co <= flushed) {
                 return COMMIT_STATUS.COMMIT_DO_SYNC;
@@ -920,7 +1035,7 @@ class OpenFileCtx {
                     if (!fromRead) {
                         CommitCtx commitCtx = new CommitCtx(commitOffset, channel, xid,
                                 preOpAttr);
-                        pendingCommits.put(commitOffset, commitCtx);
+                        pendingCommits.put(commitOffset, commitOffset + 1, commitCtx);
                     }
                     return COMMIT_STATUS.COMMIT_WAIT;
                 } else {
@@ -929,15 +1044,13 @@ class OpenFileCtx {
             }
         }
 
-        Entry<OffsetRange, WriteCtx> key = pendingWrites.firstEntry();
-
         // Commit whole file, commitOffset == 0
         if (!fromRead) {
             // Insert commit
-            long maxOffset = key.getKey().getMax() - 1;
+            long maxOffset = pendingWrites.lastMax() - 1;
             Preconditions.checkState(maxOffset > 0);
             CommitCtx commitCtx = new CommitCtx(maxOffset, channel, xid, preOpAttr);
-            pendingCommits.put(maxOffset, commitCtx);
+            pendingCommits.put(maxOffset, maxOffset + 1, commitCtx);
         }
         return COMMIT_STATUS.COMMIT_WAIT;
     }
@@ -966,20 +1079,21 @@ class OpenFileCtx {
     }
 
     /**
-     * Get (and remove) the next WriteCtx from {@link #pendingWrites} if possible.
+     * Get (and remove) the next WriteCtx from {@link #pendingWrites} if possible,
+     * along with the writes contiguous to it, up to {@link #coalesceMaxBytes}.
      *
      * @return Null if {@link #pendingWrites} is null, or the next WriteCtx's offset is larger than nextOffSet.
      */
-    private synchronized WriteCtx offerNextToWrite() {
+    private synchronized List<WriteCtx> offerNextToWrite() {
         if (pendingWrites.isEmpty()) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("The async write task has no pending writes, fileId: "
                         + latestAttr.getFileId());
             }
             // process pending commit again to handle this race: a commit is added
-            // to pendingCommits map just after the last doSingleWrite returns.
+            // to pendingCommits map just after the last doWrites returns.
             // There is no pending write and the commit should be handled by the
-            // last doSingleWrite. Due to the race, the commit is left along and
+            // last doWrites. Due to the race, the commit is left along and
             // can't be processed until cleanup. Therefore, we should do another
             // processCommits to fix the race issue.
             processCommits(nextOffset.get()); // nextOffset has same value as
@@ -988,47 +1102,64 @@ class OpenFileCtx {
             return null;
         }
 
-        Entry<OffsetRange, WriteCtx> lastEntry = pendingWrites.lastEntry();
-        OffsetRange range = lastEntry.getKey();
-        WriteCtx toWrite = lastEntry.getValue();
+        long min = pendingWrites.firstMin();
+        long max = pendingWrites.firstMax();
 
         if (LOG.isTraceEnabled()) {
-            LOG.trace("range.getMin()=" + range.getMin() + " nextOffset="
-                    + nextOffset);
+            LOG.trace("range.getMin()=" + min + " nextOffset=" + nextOffset);
         }
 
         long offset = nextOffset.get();
-        if (range.getMin() > offset) {
+        if (min > offset) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("The next sequential write has not arrived yet");
             }
             processCommits(nextOffset.get()); // handle race
             this.asyncStatus = false;
-        } else if (range.getMin() < offset && range.getMax() > offset) {
+        } else if (min < offset && max > offset) {
             // shouldn't happen since we do sync for overlapped concurrent writers
-            LOG.warn("Got an overlapping write (" + range.getMin() + ", "
-                    + range.getMax() + "), nextOffset=" + offset
-                    + ". Silently drop it now");
-            pendingWrites.remove(range);
+            LOG.warn("Got an overlapping write (" + min + ", " + max
+                    + "), nextOffset=" + offset + ". Silently drop it now");
+            dropWrite(pendingWrites.pollFirst());
             processCommits(nextOffset.get()); // handle race
         } else {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Remove write(" + range.getMin() + "-" + range.getMax()
-                        + ") from the list");
+                LOG.debug("Remove write(" + min + "-" + max + ") from the list");
             }
             // after writing, remove the WriteCtx from cache
-            pendingWrites.remove(range);
+            WriteCtx toWrite = pendingWrites.pollFirst();
             // update nextOffset
             nextOffset.addAndGet(toWrite.getCount());
+            List<WriteCtx> batch = new ArrayList<WriteCtx>();
+            batch.add(toWrite);
+            coalesce(batch, toWrite.getCount());
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Change nextOffset to " + nextOffset.get());
             }
-            return toWrite;
+            return batch;
         }
 
         return null;
     }
 
+    /**
+     * Take the writes starting right at nextOffset off {@link #pendingWrites},
+     * as long as the batch stays within {@link #coalesceMaxBytes}.
+     */
+    private void coalesce(List<WriteCtx> batch, long batchBytes) {
+        while (!pendingWrites.isEmpty()) {
+            WriteCtx w = pendingWrites.first();
+            if (pendingWrites.firstMin() != nextOffset.get()
+                    || batchBytes + w.getCount() > coalesceMaxBytes) {
+                return;
+            }
+            pendingWrites.pollFirst();
+            nextOffset.addAndGet(w.getCount());
+            batch.add(w);
+            batchBytes += w.getCount();
+        }
+    }
+
     /** Invoked by AsyncDataService to write back to HDFS */
     void executeWriteBack() {
         Preconditions.checkState(asyncStatus,
@@ -1037,10 +1168,10 @@ class OpenFileCtx {
         try {
             while (activeState) {
                 // asyncStatus could be changed to false in offerNextToWrite()
-                WriteCtx toWrite = offerNextToWrite();
+                List<WriteCtx> toWrite = offerNextToWrite();
                 if (toWrite != null) {
                     // Do the write
-                    doSingleWrite(toWrite);
+                    doWrites(toWrite);
                     updateLastAccessTime();
                 } else {
                     break;
@@ -1070,13 +1201,14 @@ class OpenFileCtx {
     private void processCommits(long offset) {
         Preconditions.checkState(offset > 0);
         long flushedOffset = 0;
-        Entry<Long, CommitCtx> entry = null;
+        // The data up to offset has just been flushed
+        long flushedTime = System.nanoTime();
 
         int status = Nfs3Status.NFS3ERR_IO;
         try {
             flushedOffset = getFlushedOffset();
-            entry = pendingCommits.firstEntry();
-            if (entry == null || entry.getValue().offset > flushedOffset) {
+            long first = pendingCommits.firstMin();
+            if (first < 0 || first > flushedOffset) {
                 return;
             }
 
@@ -1100,6 +1232,9 @@ class OpenFileCtx {
         try {
             latestAttr = Nfs3Utils.getFileAttr(client,
                     Nfs3Utils.getFileIdPath(latestAttr.getFileId()), iug);
+            if (attrCache != null) {
+                attrCache.put(latestAttr);
+            }
         } catch (IOException e) {
             LOG.error("Can't get new file attr, fileId: " + latestAttr.getFileId(), e);
             status = Nfs3Status.NFS3ERR_IO;
@@ -1113,14 +1248,15 @@ class OpenFileCtx {
         WccData wccData = new WccData(Nfs3Utils.getWccAttr(latestAttr), latestAttr);
 
         // Send response for the ready commits
-        while (entry != null && entry.getValue().offset <= flushedOffset) {
-            pendingCommits.remove(entry.getKey());
-            CommitCtx commit = entry.getValue();
+        CommitCtx commit;
+        while ((commit = pendingCommits.pollFirstUpTo(flushedOffset)) != null) {
 
 //            COMMIT3Response response = new COMMIT3Response(status, wccData,
 //                    Nfs3Constant.WRITE_COMMIT_VERF);
-//            RpcProgramNfs3.metrics.addCommit(Nfs3Utils
-//                    .getElapsedTime(commit.startTime));
+            RpcProgramNfs3.metrics.addCommit(Nfs3Utils
+                    .getElapsedTime(commit.startTime));
+            RpcProgramNfs3.metrics.addCommitWait(
+                    Math.max(0, flushedTime - commit.startTime));
 //            Nfs3Utils.writeChannelCommit(commit.getChannel(), response
 //                    .serialize(new XDR(), commit.getXid(),
 //                            new VerifierNone()), commit.getXid());
@@ -1130,56 +1266,65 @@ class OpenFileCtx {
                         + Nfs3Utils.getElapsedTime(commit.startTime)
                         + "ns. Sent response for commit: " + commit);
             }
-            entry = pendingCommits.firstEntry();
         }
     }
 
-    private void doSingleWrite(final WriteCtx writeCtx) {
-        Channel channel = writeCtx.getChannel();
-        int xid = writeCtx.getXid();
-
-        long offset = writeCtx.getOffset();
-        int count = writeCtx.getCount();
-        Nfs3Constant.WriteStableHow stableHow = writeCtx.getStableHow();
+    /**
+     * Write back a batch of contiguous writes with one write to the stream, then
+     * reply to each of them.
+     */
+    private void doWrites(final List<WriteCtx> batch) {
+        WriteCtx first = batch.get(0);
+        WriteCtx last = batch.get(batch.size() - 1);
+        long offset = first.getOffset();
+        long end = last.getOffset() + last.getCount();
 
-        FileHandle handle = writeCtx.getHandle();
+        FileHandle handle = first.getHandle();
         if (LOG.isDebugEnabled()) {
             LOG.debug("do write, fileId: " + handle.getFileId() + " offset: "
-                    + offset + " length: " + count + " stableHow: " + stableHow.name());
+                    + offset + " length: " + (end - offset) + " writes: "
+                    + batch.size());
         }
 
         try {
             // The write is not protected by lock. asyncState is used to make sure
             // there is one thread doing write back at any time
-            writeCtx.writeData(fos);
-//            RpcProgramNfs3.metrics.incrBytesWritten(writeCtx.getCount());
+            WriteCtx.writeData(fos, batch);
+            RpcProgramNfs3.metrics.incrBytesWritten(end - offset);
+            RpcProgramNfs3.metrics.incrBackendWrites(batch.size());
 
             long flushedOffset = getFlushedOffset();
-            if (flushedOffset != (offset + count)) {
+            if (flushedOffset != end) {
                 throw new IOException("output stream is out of sync, pos="
-                        + flushedOffset + " and nextOffset should be"
-                        + (offset + count));
+                        + flushedOffset + " and nextOffset should be" + end);
             }
 
-
-            // Reduce memory occupation size if request was allowed dumped
-            if (writeCtx.getDataState() == WriteCtx.DataState.ALLOW_DUMP) {
-                synchronized (writeCtx) {
-                    if (writeCtx.getDataState() == WriteCtx.DataState.ALLOW_DUMP) {
-                        writeCtx.setDataState(WriteCtx.DataState.NO_DUMP);
-                        updateNonSequentialWriteInMemory(-count);
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("After writing " + handle.getFileId() + " at offset "
-                                    + offset + ", updated the memory count, new value: "
-                                    + nonSequentialWriteInMemory.get());
+            boolean synced = false;
+            for (WriteCtx writeCtx : batch) {
+                int count = writeCtx.getCount();
+                // Reduce memory occupation size if request was allowed dumped
+                if (writeCtx.getDataState() == WriteCtx.DataState.ALLOW_DUMP) {
+                    synchronized (writeCtx) {
+                        if (writeCtx.getDataState() == WriteCtx.DataState.ALLOW_DUMP) {
+                            writeCtx.setDataState(WriteCtx.DataState.NO_DUMP);
+                            updateNonSequentialWriteInMemory(-count);
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("After writing " + handle.getFileId() + " at offset "
+                                        + writeCtx.getOffset() + ", updated the memory count, new value: "
+                                        + nonSequentialWriteInMemory.get());
+                            }
                         }
                     }
                 }
-            }
 
-            if (!writeCtx.getReplied()) {
-                if (stableHow != Nfs3Constant.WriteStableHow.UNSTABLE) {
+                if (writeCtx.getReplied()) {
+                    continue;
+                }
+                Nfs3Constant.WriteStableHow stableHow = writeCtx.getStableHow();
+                if (stableHow != Nfs3Constant.WriteStableHow.UNSTABLE && !synced) {
+                    // One sync covers the whole batch
                     LOG.info("Do sync for stable write: " + writeCtx);
+                    synced = true;
 //                    try {
 //                        if (stableHow == Nfs3Constant.WriteStableHow.DATA_SYNC) {
 //                            fos.hsync();
@@ -1204,27 +1349,36 @@ class OpenFileCtx {
                 }
                 WRITE3Response response = new WRITE3Response(Nfs3Status.NFS3_OK,
                         fileWcc, count, stableHow, Nfs3Constant.WRITE_COMMIT_VERF);
-//                RpcProgramNfs3.metrics.addWrite(Nfs3Utils.getElapsedTime(writeCtx.startTime));
-                Nfs3Utils.writeChannel(channel, response.serialize(
-                        new XDR(), xid, new VerifierNone()), xid);
+                RpcProgramNfs3.metrics.addWrite(Nfs3Utils.getElapsedTime(writeCtx.startTime));
+                Nfs3Utils.writeChannel(writeCtx.getChannel(), response.serialize(
+                        new XDR(), writeCtx.getXid(), new VerifierNone()),
+                        writeCtx.getXid());
             }
 
             // Handle the waiting commits without holding any lock
-            processCommits(writeCtx.getOffset() + writeCtx.getCount());
+            processCommits(end);
 
         } catch (IOException e) {
             LOG.error("Error writing to fileId " + handle.getFileId() + " at offset "
-                    + offset + " and length " + count, e);
-            if (!writeCtx.getReplied()) {
-                WRITE3Response response = new WRITE3Response(Nfs3Status.NFS3ERR_IO);
-                Nfs3Utils.writeChannel(channel, response.serialize(
-                        new XDR(), xid, new VerifierNone()), xid);
-                // Keep stream open. Either client retries or SteamMonitor closes it.
+                    + offset + " and length " + (end - offset), e);
+            for (WriteCtx writeCtx : batch) {
+                if (!writeCtx.getReplied()) {
+                    WRITE3Response response = new WRITE3Response(Nfs3Status.NFS3ERR_IO);
+                    Nfs3Utils.writeChannel(writeCtx.getChannel(), response.serialize(
+                            new XDR(), writeCtx.getXid(), new VerifierNone()),
+                            writeCtx.getXid());
+                    // Keep stream open. Either client retries or SteamMonitor closes it.
+                }
             }
 
             LOG.info("Clean up open file context for fileId: "
                     + latestAttr.getFileId());
             cleanup();
+        } finally {
+            // The writes are out of pendingWrites, drop their references
+            for (WriteCtx writeCtx : batch) {
+                writeCtx.release();
+            }
         }
     }
 
@@ -1234,6 +1388,10 @@ class OpenFileCtx {
             return;
         }
         activeState = false;
+        if (attrCache != null) {
+            // Closing the stream updates the file on the backend
+            attrCache.invalidate(latestAttr.getFileId());
+        }
 
         // stop the dump thread
         if (dumpThread != null && dumpThread.isAlive()) {
@@ -1257,12 +1415,13 @@ class OpenFileCtx {
         // Reply error for pending writes
         LOG.info("There are " + pendingWrites.size() + " pending writes.");
         WccAttr preOpAttr = latestAttr.getWccAttr();
-        while (!pendingWrites.isEmpty()) {
-            OffsetRange key = pendingWrites.firstKey();
-            LOG.info("Fail pending write: (" + key.getMin() + ", " + key.getMax()
+        WriteCtx writeCtx;
+        while ((writeCtx = pendingWrites.pollFirst()) != null) {
+            long min = writeCtx.getOffset();
+            long max = min + writeCtx.getCount();
+            LOG.info("Fail pending write: (" + min + ", " + max
                     + "), nextOffset=" + nextOffset.get());
 
-            WriteCtx writeCtx = pendingWrites.remove(key);
             if (!writeCtx.getReplied()) {
                 WccData fileWcc = new WccData(preOpAttr, latestAttr);
                 WRITE3Response response = new WRITE3Response(Nfs3Status.NFS3ERR_IO,
@@ -1271,36 +1430,20 @@ class OpenFileCtx {
                         .serialize(new XDR(), writeCtx.getXid(),
                                 new VerifierNone()), writeCtx.getXid());
             }
+            dropWrite(writeCtx);
         }
-
-        // Cleanup dump file
-        if (dumpOut != null) {
-            try {
-                dumpOut.close();
-            } catch (IOException e) {
-                LOG.error("Failed to close outputstream of dump file" + dumpFilePath, e);
-            }
-            File dumpFile = new File(dumpFilePath);
-            if (dumpFile.exists() && !dumpFile.delete()) {
-                LOG.error("Failed to delete dumpfile: " + dumpFile);
-            }
-        }
-        if (raf != null) {
-            try {
-                raf.close();
-            } catch (IOException e) {
-                LOG.error("Got exception when closing input stream of dump file.", e);
-            }
+        if (writeMemoryBudget != null) {
+            writeMemoryBudget.remove(this);
         }
     }
 
     @VisibleForTesting
-    ConcurrentNavigableMap<OffsetRange, WriteCtx> getPendingWritesForTest() {
+    OffsetRangeMap<WriteCtx> getPendingWritesForTest() {
         return pendingWrites;
     }
 
     @VisibleForTesting
-    ConcurrentNavigableMap<Long, CommitCtx> getPendingCommitsForTest() {
+    OffsetRangeMap<CommitCtx> getPendingCommitsForTest() {
         return pendingCommits;
     }
 
@@ -23,86 +23,172 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * A cache saves OpenFileCtx objects for different users. Each cache entry is used to maintain the writing context for a
  * single file.
+ * <p>
+ * Lookups only go through the concurrent map. The entries are also kept in access order, oldest first, for eviction,
+ * and on a hashed timing wheel for the stream timeout, both under the cache lock. Neither is updated on access: an
+ * entry found to have been accessed since it was queued is queued again with its new access time, so a lookup never
+ * takes the lock and eviction and expiry only visit the entries they act on or requeue.
  */
 class OpenFileCtxCache {
     private static final Log LOG = LogFactory.getLog(OpenFileCtxCache.class);
+
+    /** A cached stream, with the access time it was queued with */
+    private static final class Node {
+        private final FileHandle handle;
+        private final OpenFileCtx ctx;
+        private long stamp;
+        /** Slot of the timing wheel the node is in, -1 if none */
+        private int slot = -1;
+
+        Node(FileHandle handle, OpenFileCtx ctx) {
+            this.handle = handle;
+            this.ctx = ctx;
+            this.stamp = ctx.getLastAccessTime();
+        }
+    }
+
     // Insert and delete with openFileMap are synced
     private final ConcurrentMap<FileHandle, OpenFileCtx> openFileMap = Maps
             .newConcurrentMap();
+    /** The nodes in the order they were queued, least recently accessed first */
+    private final LinkedHashMap<FileHandle, Node> lru = new LinkedHashMap<FileHandle, Node>();
+    /** Nodes by the tick their timeout expires at, modulo the number of slots */
+    private final Set<Node>[] wheel;
+    /** The last tick whose slot was expired */
+    private long lastTick;
 
     private final int maxStreams;
     private final long streamTimeout;
     private final StreamMonitor streamMonitor;
 
+    @SuppressWarnings({"unchecked", "rawtypes"})
     OpenFileCtxCache(NfsConfiguration config, long streamTimeout) {
         maxStreams = config.getInt(NfsConfigKeys.DFS_NFS_MAX_OPEN_FILES_KEY,
                 NfsConfigKeys.DFS_NFS_MAX_OPEN_FILES_DEFAULT);
         LOG.info("Maximum open streams is " + maxStreams);
         this.streamTimeout = streamTimeout;
+        // One revolution covers the timeout, so no deadline wraps around
+        wheel = new Set[(int) (streamTimeout / StreamMonitor.rotation) + 2];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new HashSet<Node>();
+        }
+        lastTick = Time.monotonicNow() / StreamMonitor.rotation - 1;
         streamMonitor = new StreamMonitor();
     }
 
+    /** Put a node on the wheel at the tick of its deadline */
+    private void schedule(Node n, long deadline) {
+        long tick = deadline / StreamMonitor.rotation;
+        tick = Math.min(Math.max(tick, lastTick + 1), lastTick + wheel.length);
+        n.slot = (int) (tick % wheel.length);
+        wheel[n.slot].add(n);
+    }
+
+    private void unschedule(Node n) {
+        if (n.slot >= 0) {
+            wheel[n.slot].remove(n);
+            n.slot = -1;
+        }
+    }
+
+    /** Queue a node again as the most recently accessed */
+    private void requeue(Node n) {
+        lru.remove(n.handle);
+        n.stamp = n.ctx.getLastAccessTime();
+        lru.put(n.handle, n);
+    }
+
+    private void removeNode(Node n) {
+        lru.remove(n.handle);
+        unschedule(n);
+        openFileMap.remove(n.handle, n.ctx);
+    }
+
     /**
      * The entry to be evicted is based on the following rules:<br> 1. if the OpenFileCtx has any pending task, it will
      * not be chosen.<br> 2. if there is inactive OpenFileCtx, the first found one is to evict. <br> 3. For OpenFileCtx
      * entries don't belong to group 1 or 2, the idlest one is select. If it's idle longer than
      * OUTPUT_STREAM_TIMEOUT_MIN_DEFAULT, it will be evicted. Otherwise, the whole eviction request is failed.
+     * <p>
+     * The entries are visited least recently accessed first. Those accessed since they were queued, and those with
+     * pending work, are queued again, the first other entry decides.
      */
     @VisibleForTesting
-    Entry<FileHandle, OpenFileCtx> getEntryToEvict() {
-        Iterator<Entry<FileHandle, OpenFileCtx>> it = openFileMap.entrySet()
-                .iterator();
+    synchronized Entry<FileHandle, OpenFileCtx> getEntryToEvict() {
         if (LOG.isTraceEnabled()) {
             LOG.trace("openFileMap size:" + openFileMap.size());
         }
 
-        Entry<FileHandle, OpenFileCtx> idlest = null;
-
-        while (it.hasNext()) {
-            Entry<FileHandle, OpenFileCtx> pairs = it.next();
-            OpenFileCtx ctx = pairs.getValue();
-            if (!ctx.getActiveState()) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Got one inactive stream: " + ctx);
+        Node idlest = null;
+        boolean allPending = true;
+        boolean decided = false;
+        // A second pass if the first one only requeued accessed entries
+        for (int pass = 0; pass < 2 && !decided; pass++) {
+            allPending = true;
+            List<Node> toRequeue = new ArrayList<Node>();
+            Iterator<Node> it = lru.values().iterator();
+            while (it.hasNext()) {
+                Node n = it.next();
+                OpenFileCtx ctx = n.ctx;
+                if (!ctx.getActiveState()) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Got one inactive stream: " + ctx);
+                    }
+                    idlest = n;
+                    decided = true;
+                    break;
+                }
+                if (ctx.hasPendingWork()) {
+                    // Always skip files with pending work.
+                    toRequeue.add(n);
+                    continue;
                 }
-                return pairs;
+                allPending = false;
+                if (ctx.getLastAccessTime() != n.stamp) {
+                    toRequeue.add(n);
+                    continue;
+                }
+                // The entries after it were accessed later
+                long idleTime = Time.monotonicNow() - n.stamp;
+                if (idleTime < NfsConfigKeys.DFS_NFS_STREAM_TIMEOUT_MIN_DEFAULT) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("idlest stream's idle time:" + idleTime);
+                    }
+                    LOG.warn("All opened streams are busy, can't remove any from cache.");
+                } else {
+                    idlest = n;
+                }
+                decided = true;
+                break;
             }
-            if (ctx.hasPendingWork()) {
-                // Always skip files with pending work.
-                continue;
+            for (Node n : toRequeue) {
+                requeue(n);
             }
-            if (idlest == null) {
-                idlest = pairs;
-            } else {
-                if (ctx.getLastAccessTime() < idlest.getValue().getLastAccessTime()) {
-                    idlest = pairs;
-                }
+            if (allPending) {
+                break;
             }
         }
 
         if (idlest == null) {
-            LOG.warn("No eviction candidate. All streams have pending work.");
-            return null;
-        } else {
-            long idleTime = Time.monotonicNow()
-                    - idlest.getValue().getLastAccessTime();
-            if (idleTime < NfsConfigKeys.DFS_NFS_STREAM_TIMEOUT_MIN_DEFAULT) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("idlest stream's idle time:" + idleTime);
-                }
-                LOG.warn("All opened streams are busy, can't remove any from cache.");
-                return null;
-            } else {
-                return idlest;
+            if (allPending) {
+                LOG.warn("No eviction candidate. All streams have pending work.");
             }
+            return null;
         }
+        return Maps.immutableEntry(idlest.handle, idlest.ctx);
     }
 
     boolean put(FileHandle h, OpenFileCtx context) {
@@ -119,11 +205,21 @@ class OpenFileCtxCache {
                     if (LOG.isDebugEnabled()) {
                         LOG.debug("Evict stream ctx: " + pairs.getValue());
                     }
-                    toEvict = openFileMap.remove(pairs.getKey());
-                    Preconditions.checkState(toEvict == pairs.getValue(),
+                    Node evicted = lru.get(pairs.getKey());
+                    Preconditions.checkState(evicted.ctx == pairs.getValue(),
                             "The deleted entry is not the same as odlest found.");
+                    removeNode(evicted);
+                    toEvict = evicted.ctx;
                 }
             }
+            Node old = lru.get(h);
+            if (old != null) {
+                unschedule(old);
+            }
+            Node n = new Node(h, context);
+            lru.remove(h);
+            lru.put(h, n);
+            schedule(n, n.stamp + streamTimeout);
             openFileMap.put(h, context);
         }
 
@@ -134,37 +230,48 @@ class OpenFileCtxCache {
         return true;
     }
 
+    /**
+     * Close the streams whose timeout expired by now. Only the slots of the
+     * timing wheel for the ticks since the last scan are visited, a stream
+     * accessed since it was scheduled is scheduled again.
+     */
     @VisibleForTesting
     void scan(long streamTimeout) {
         ArrayList<OpenFileCtx> ctxToRemove = new ArrayList<OpenFileCtx>();
-        Iterator<Entry<FileHandle, OpenFileCtx>> it = openFileMap.entrySet()
-                .iterator();
         if (LOG.isTraceEnabled()) {
             LOG.trace("openFileMap size:" + openFileMap.size());
         }
 
-        while (it.hasNext()) {
-            Entry<FileHandle, OpenFileCtx> pairs = it.next();
-            FileHandle handle = pairs.getKey();
-            OpenFileCtx ctx = pairs.getValue();
-            if (!ctx.streamCleanup(handle.getFileId(), streamTimeout)) {
-                continue;
-            }
-
-            // Check it again inside lock before removing
-            synchronized (this) {
-                OpenFileCtx ctx2 = openFileMap.get(handle);
-                if (ctx2 != null) {
-                    if (ctx2.streamCleanup(handle.getFileId(), streamTimeout)) {
-                        openFileMap.remove(handle);
+        synchronized (this) {
+            long now = Time.monotonicNow();
+            long nowTick = now / StreamMonitor.rotation;
+            // After a long pause, one revolution visits every slot
+            long from = Math.max(lastTick + 1, nowTick - wheel.length + 1);
+            for (long tick = from; tick <= nowTick; tick++) {
+                Set<Node> slot = wheel[(int) (tick % wheel.length)];
+                if (slot.isEmpty()) {
+                    lastTick = tick;
+                    continue;
+                }
+                Node[] due = slot.toArray(new Node[slot.size()]);
+                slot.clear();
+                lastTick = tick;
+                for (Node n : due) {
+                    n.slot = -1;
+                    FileHandle handle = n.handle;
+                    if (n.ctx.streamCleanup(handle.getFileId(), streamTimeout)) {
+                        removeNode(n);
                         if (LOG.isDebugEnabled()) {
                             LOG.debug("After remove stream " + handle.getFileId()
                                     + ", the stream number:" + openFileMap.size());
                         }
-                        ctxToRemove.add(ctx2);
+                        ctxToRemove.add(n.ctx);
+                    } else {
+                        schedule(n, n.ctx.getLastAccessTime() + streamTimeout);
                     }
                 }
             }
+            lastTick = Math.max(lastTick, nowTick);
         }
 
         // Invoke the cleanup outside the lock
@@ -181,6 +288,11 @@ class OpenFileCtxCache {
         return openFileMap.size();
     }
 
+    /** A read-only view of the cached streams */
+    Map<FileHandle, OpenFileCtx> getOpenFiles() {
+        return Collections.unmodifiableMap(openFileMap);
+    }
+
     void start() {
         streamMonitor.start();
     }
@@ -189,17 +301,14 @@ class OpenFileCtxCache {
     void cleanAll() {
         ArrayList<OpenFileCtx> cleanedContext = new ArrayList<OpenFileCtx>();
         synchronized (this) {
-            Iterator<Entry<FileHandle, OpenFileCtx>> it = openFileMap.entrySet()
-                    .iterator();
             if (LOG.isTraceEnabled()) {
                 LOG.trace("openFileMap size:" + openFileMap.size());
             }
-
-            while (it.hasNext()) {
-                Entry<FileHandle, OpenFileCtx> pairs = it.next();
-                OpenFileCtx ctx = pairs.getValue();
-                it.remove();
-                cleanedContext.add(ctx);
+            cleanedContext.addAll(openFileMap.values());
+            openFileMap.clear();
+            lru.clear();
+            for (Set<Node> slot : wheel) {
+                slot.clear();
             }
         }
 
@@ -227,7 +336,8 @@ class OpenFileCtxCache {
      * StreamMonitor wakes up periodically to find and closes idle streams.
      */
     class StreamMonitor extends Daemon {
-        private final static int rotation = 5 * 1000; // 5 seconds
+        // 5 seconds, also the tick of the timing wheel
+        private final static int rotation = 5 * 1000;
         private long lastWakeupTime = 0;
         private boolean shouldRun = true;
 
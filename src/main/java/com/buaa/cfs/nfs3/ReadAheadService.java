@@ -0,0 +1,441 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead for READ. The gateway serves each READ with a positional read of
+ * the backend stream, so a client streaming a file pays the backend latency on
+ * every request. This service tracks the access pattern per (user, fileId)
+ * and, once a stream reads sequentially, prefetches the next windows on a
+ * thread pool so that the following READs find their data in memory.
+ * <p>
+ * The first window has the size of the READ and the size doubles while the
+ * stream stays sequential, up to the configured maximum. A read far from where
+ * the stream is expected to continue cancels the windows of the stream and
+ * starts the detection over. The windows of a file are dropped when the file is changed through the
+ * gateway, and when the file has not been read for a while. The prefetched
+ * data of all the streams is bounded, when the bound is reached no more
+ * windows are prefetched until the readers catch up.
+ */
+class ReadAheadService {
+    static final Log LOG = LogFactory.getLog(ReadAheadService.class);
+
+    /** Number of sequential reads before prefetching starts */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+    private static final int MAX_FILES = 1024;
+    private static final long FILE_IDLE_SECONDS = 60;
+
+    private final int numWindows;
+    private final int maxWindow;
+    private final long maxBytes;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final Nfs3Metrics metrics;
+    /** null if read-ahead is disabled */
+    private final ThreadPoolExecutor executor;
+    private final Cache<Long, FileReadAhead> files;
+
+    /**
+     * A prefetched range of the file. Its bytes count in the buffered bytes
+     * until it is dropped and no longer being filled.
+     */
+    private static final class Window implements Callable<Integer> {
+        private final DFSClientCache.ReadHandle handle;
+        private final long offset;
+        private final byte[] data;
+        private final AtomicLong bufferedBytes;
+        private Future<Integer> future;
+        /** Guarded by the window */
+        private boolean filling;
+        private boolean dropped;
+
+        Window(DFSClientCache.ReadHandle handle, long offset, int length,
+                AtomicLong bufferedBytes) {
+            this.handle = handle;
+            this.offset = offset;
+            this.data = new byte[length];
+            this.bufferedBytes = bufferedBytes;
+        }
+
+        long end() {
+            return offset + data.length;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            synchronized (this) {
+                if (dropped) {
+                    // Dropped before it started, its bytes are released
+                    return 0;
+                }
+                filling = true;
+            }
+            try {
+                return fill();
+            } finally {
+                boolean release;
+                synchronized (this) {
+                    filling = false;
+                    release = dropped;
+                }
+                if (release) {
+                    bufferedBytes.addAndGet(-data.length);
+                }
+            }
+        }
+
+        private int fill() throws IOException {
+            // The handle is only pinned while reading, a window cancelled before
+            // it runs doesn't hold it open
+            if (!handle.tryRetain()) {
+                throw new IOException("Handle of fileId " + handle.getFileId()
+                        + " is closed");
+            }
+            try {
+                int n = 0;
+                while (n < data.length) {
+                    int r = handle.read(offset + n, data, n, data.length - n);
+                    if (r < 0) {
+                        break;
+                    }
+                    n += r;
+                }
+                return n;
+            } finally {
+                handle.release();
+            }
+        }
+
+        /**
+         * Stop counting the window in the buffered bytes. A window still being
+         * filled is released when the fill returns.
+         */
+        void drop() {
+            synchronized (this) {
+                if (dropped) {
+                    return;
+                }
+                dropped = true;
+                if (filling) {
+                    return;
+                }
+            }
+            bufferedBytes.addAndGet(-data.length);
+        }
+
+        /** @return the number of bytes prefetched, waiting for them if needed */
+        int get() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for read-ahead");
+            } catch (CancellationException e) {
+                throw new IOException("Read-ahead was cancelled", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Read-ahead failed", e.getCause());
+            }
+        }
+    }
+
+    /** Access pattern and prefetched windows of one user reading a file */
+    private static final class Stream {
+        /** Offset the next sequential read starts at */
+        private long expected = -1;
+        private int sequential;
+        private int windowSize;
+        /** Contiguous windows in offset order */
+        private final ArrayDeque<Window> windows = new ArrayDeque<Window>();
+        /** End of the last window, -1 if there's none */
+        private long prefetchEnd = -1;
+        /** Whether a window reached the end of the file */
+        private boolean eof;
+    }
+
+    /** The streams reading a file. Access is synchronized on the object. */
+    private static final class FileReadAhead {
+        private final Map<String, Stream> streams = new HashMap<String, Stream>();
+    }
+
+    ReadAheadService(NfsConfiguration config, Nfs3Metrics metrics) {
+        numWindows = config.getInt(NfsConfigKeys.DFS_NFS_READAHEAD_WINDOWS_KEY,
+                NfsConfigKeys.DFS_NFS_READAHEAD_WINDOWS_DEFAULT);
+        maxWindow = config.getInt(NfsConfigKeys.DFS_NFS_READAHEAD_WINDOW_MAX_KEY,
+                NfsConfigKeys.DFS_NFS_READAHEAD_WINDOW_MAX_DEFAULT);
+        maxBytes = config.getLong(NfsConfigKeys.DFS_NFS_READAHEAD_MAX_BYTES_KEY,
+                NfsConfigKeys.DFS_NFS_READAHEAD_MAX_BYTES_DEFAULT);
+        int threads = config.getInt(NfsConfigKeys.DFS_NFS_READAHEAD_THREADS_KEY,
+                NfsConfigKeys.DFS_NFS_READAHEAD_THREADS_DEFAULT);
+        this.metrics = metrics;
+
+        if (numWindows <= 0 || maxWindow <= 0 || maxBytes <= 0 || threads <= 0) {
+            LOG.info("Read-ahead is disabled");
+            executor = null;
+        } else {
+            LOG.info("Read-ahead of " + numWindows + " windows up to " + maxWindow
+                    + " bytes, buffered bytes limit " + maxBytes + ", " + threads
+                    + " threads");
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("Read-ahead-%d").build());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        files = CacheBuilder.newBuilder()
+                .maximumSize(MAX_FILES)
+                .expireAfterAccess(FILE_IDLE_SECONDS, TimeUnit.SECONDS)
+                .removalListener(new RemovalListener<Long, FileReadAhead>() {
+                    @Override
+                    public void onRemoval(
+                            RemovalNotification<Long, FileReadAhead> notification) {
+                        FileReadAhead file = notification.getValue();
+                        synchronized (file) {
+                            for (Stream s : file.streams.values()) {
+                                reset(s);
+                            }
+                            file.streams.clear();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Read from the file at offset. The data is taken from the prefetched
+     * windows of the stream where possible, the rest is read from the handle,
+     * which the caller keeps retained during the call. Then further windows are
+     * prefetched if the stream reads sequentially.
+     *
+     * @return the number of bytes read, -1 at the end of the file
+     */
+    int read(String user, DFSClientCache.ReadHandle handle, long offset,
+            byte[] buf, int count) throws IOException {
+        long fileId = handle.getFileId();
+        if (executor == null) {
+            return handle.read(offset, buf, 0, count);
+        }
+
+        FileReadAhead file = getFile(fileId);
+        List<Window> hits = new ArrayList<Window>();
+        synchronized (file) {
+            Stream s = file.streams.get(user);
+            if (s == null) {
+                s = new Stream();
+                file.streams.put(user, s);
+            }
+            for (Window w : s.windows) {
+                if (w.handle != handle) {
+                    // The handle was reopened, the windows may hold stale data
+                    reset(s);
+                    break;
+                }
+            }
+            // Clients keep several READs in flight, which may arrive out of
+            // order, so a read close to the expected offset is still sequential
+            long slack = (long) count * numWindows;
+            if (s.expected >= 0 && Math.abs(offset - s.expected) <= slack) {
+                s.sequential++;
+                s.expected = Math.max(s.expected, offset + count);
+            } else {
+                // Random access
+                reset(s);
+                s.sequential = 0;
+                s.expected = offset + count;
+            }
+            for (Window w : s.windows) {
+                if (w.offset >= offset + count) {
+                    break;
+                }
+                if (w.end() > offset) {
+                    hits.add(w);
+                }
+            }
+        }
+
+        // Wait for the windows outside the lock, so that a change to the file
+        // doesn't have to wait for them
+        int done = 0;
+        long eof = -1;
+        for (Window w : hits) {
+            if (w.offset > offset + done) {
+                // A read slightly behind the windows, or a hole between them.
+                // The rest is read from the stream.
+                break;
+            }
+            int n;
+            try {
+                n = w.get();
+            } catch (IOException e) {
+                LOG.debug("Read-ahead failed, reading from the stream", e);
+                break;
+            }
+            int from = (int) (offset + done - w.offset);
+            int len = Math.min(n - from, count - done);
+            if (n < w.data.length) {
+                eof = w.offset + n;
+            }
+            if (len <= 0) {
+                break;
+            }
+            System.arraycopy(w.data, from, buf, done, len);
+            done += len;
+            if (eof >= 0) {
+                break;
+            }
+        }
+        metrics.incrReadAheadHitBytes(done);
+
+        int readCount = done;
+        if (done < count && eof < 0) {
+            int n = handle.read(offset + done, buf, done, count - done);
+            if (n > 0) {
+                readCount += n;
+            } else if (done == 0) {
+                readCount = n;
+            }
+        }
+
+        synchronized (file) {
+            Stream s = file.streams.get(user);
+            if (s != null) {
+                consume(s, offset + count);
+                if (eof >= 0) {
+                    truncate(s, eof);
+                }
+                if (s.sequential >= SEQUENTIAL_THRESHOLD) {
+                    prefetch(s, handle, s.expected, count);
+                }
+            }
+        }
+        return readCount;
+    }
+
+    private FileReadAhead getFile(long fileId) {
+        FileReadAhead file = files.getIfPresent(fileId);
+        if (file == null) {
+            files.asMap().putIfAbsent(fileId, new FileReadAhead());
+            file = files.getIfPresent(fileId);
+            if (file == null) {
+                // Evicted right away, use a detached one
+                file = new FileReadAhead();
+            }
+        }
+        return file;
+    }
+
+    /** Drop the windows that end before offset */
+    private void consume(Stream s, long offset) {
+        while (!s.windows.isEmpty() && s.windows.peekFirst().end() <= offset) {
+            release(s.windows.pollFirst());
+        }
+        if (s.windows.isEmpty()) {
+            s.prefetchEnd = -1;
+        }
+    }
+
+    /** The file ends at eof, drop the windows beyond it and stop prefetching */
+    private void truncate(Stream s, long eof) {
+        while (!s.windows.isEmpty() && s.windows.peekLast().offset >= eof) {
+            Window w = s.windows.pollLast();
+            w.future.cancel(false);
+            release(w);
+        }
+        s.prefetchEnd = s.windows.isEmpty() ? -1 : s.windows.peekLast().end();
+        s.eof = true;
+    }
+
+    /** Schedule windows to cover numWindows windows after offset */
+    private void prefetch(Stream s, DFSClientCache.ReadHandle handle, long offset,
+            int count) {
+        if (s.eof) {
+            return;
+        }
+        s.windowSize = s.windowSize == 0 ? count
+                : Math.min(Math.max(s.windowSize * 2, count), maxWindow);
+        long start = Math.max(s.prefetchEnd, offset);
+        long limit = offset + (long) numWindows * s.windowSize;
+        while (start < limit) {
+            if (bufferedBytes.addAndGet(s.windowSize) > maxBytes) {
+                bufferedBytes.addAndGet(-s.windowSize);
+                break;
+            }
+            Window w = new Window(handle, start, s.windowSize, bufferedBytes);
+            w.future = executor.submit(w);
+            s.windows.addLast(w);
+            start = w.end();
+        }
+        if (!s.windows.isEmpty()) {
+            s.prefetchEnd = s.windows.peekLast().end();
+        }
+    }
+
+    /** Cancel the windows of the stream and forget its pattern */
+    private void reset(Stream s) {
+        for (Iterator<Window> it = s.windows.iterator(); it.hasNext(); ) {
+            Window w = it.next();
+            w.future.cancel(false);
+            release(w);
+            it.remove();
+        }
+        s.prefetchEnd = -1;
+        s.windowSize = 0;
+        s.eof = false;
+    }
+
+    private void release(Window w) {
+        w.drop();
+    }
+
+    /** Drop all the read-ahead of a file that has been changed */
+    void invalidate(long fileId) {
+        files.invalidate(fileId);
+    }
+
+    void shutdown() {
+        files.invalidateAll();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @VisibleForTesting
+    long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+}
@@ -23,6 +23,8 @@ import com.buaa.cfs.exception.AuthorizationException;
 import com.buaa.cfs.exception.DirectoryListingStartAfterNotFoundException;
 import com.buaa.cfs.fs.*;
 import com.buaa.cfs.fs.permission.FsPermission;
+import com.buaa.cfs.io.ByteBufferPool;
+import com.buaa.cfs.io.ElasticByteBufferPool;
 import com.buaa.cfs.net.DNS;
 import com.buaa.cfs.nfs3.request.*;
 import com.buaa.cfs.nfs3.response.*;
@@ -38,6 +40,8 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 
 import static com.buaa.cfs.constant.Nfs3Constant.*;
@@ -52,7 +56,9 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.rmi.RemoteException;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 
 /**
  * RPC program corresponding to nfs daemon. See {@link Nfs3}.
@@ -78,9 +84,18 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
     private String writeDumpDir; // The dir save dump files
 
     private final RpcCallCache rpcCallCache;
+    private final Nfs3AttrCache attrCache;
+    private final Nfs3DentryCache dentryCache;
+    private final Nfs3ListingCache listingCache;
+    private final ReadAheadService readAheadService;
+    private final Nfs3BlockCache blockCache;
+
+    /** Pool for reply buffers, null if replies are not pooled */
+    private final ByteBufferPool responseBufferPool;
+    private final boolean directResponseBuffer;
     private JvmPauseMonitor pauseMonitor;
-    //    private Nfs3HttpServer infoServer = null;
-    //    static Nfs3Metrics metrics;
+    private Nfs3HttpServer infoServer = null;
+    static Nfs3Metrics metrics;
     private String superuser;
 
     public RpcProgramNfs3(NfsConfiguration config, DatagramSocket registrationSocket,
@@ -100,6 +115,11 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                 NfsConfigKeys.AIX_COMPAT_MODE_DEFAULT);
         exports = NfsExports.getInstance(config);
         writeManager = new WriteManager(iug, config, aixCompatMode);
+        attrCache = writeManager.getAttrCache();
+        dentryCache = new Nfs3DentryCache(config);
+        listingCache = new Nfs3ListingCache(config);
+        readAheadService = new ReadAheadService(config, metrics);
+        blockCache = new Nfs3BlockCache(config, metrics);
         clientCache = new DFSClientCache(config);
         replication = (short) config.getInt(DFSConfigKeys.DFS_REPLICATION_KEY,
                 DFSConfigKeys.DFS_REPLICATION_DEFAULT);
@@ -126,8 +146,26 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             clearDirectory(writeDumpDir);
         }
 
-        rpcCallCache = new RpcCallCache("NFS3", 256);
-//        infoServer = new Nfs3HttpServer(config);
+        rpcCallCache = new RpcCallCache("NFS3",
+                config.getInt(NfsConfigKeys.DFS_NFS_DRC_MAX_ENTRIES_KEY,
+                        NfsConfigKeys.DFS_NFS_DRC_MAX_ENTRIES_DEFAULT),
+                config.getLongBytes(NfsConfigKeys.DFS_NFS_DRC_MAX_BYTES_KEY,
+                        NfsConfigKeys.DFS_NFS_DRC_MAX_BYTES_DEFAULT),
+                config.getLong(NfsConfigKeys.DFS_NFS_DRC_EXPIRY_MILLIS_KEY,
+                        NfsConfigKeys.DFS_NFS_DRC_EXPIRY_MILLIS_DEFAULT),
+                config.getInt(NfsConfigKeys.DFS_NFS_DRC_MAX_ENTRIES_PER_CLIENT_KEY,
+                        NfsConfigKeys.DFS_NFS_DRC_MAX_ENTRIES_PER_CLIENT_DEFAULT));
+        responseBufferPool = config.getBoolean(
+                NfsConfigKeys.DFS_NFS_RESPONSE_BUFFER_POOL_KEY,
+                NfsConfigKeys.DFS_NFS_RESPONSE_BUFFER_POOL_DEFAULT) ?
+                new ElasticByteBufferPool(config.getLongBytes(
+                        NfsConfigKeys.DFS_NFS_RESPONSE_BUFFER_POOL_MAX_BYTES_KEY,
+                        NfsConfigKeys.DFS_NFS_RESPONSE_BUFFER_POOL_MAX_BYTES_DEFAULT))
+                : null;
+        directResponseBuffer = config.getBoolean(
+                NfsConfigKeys.DFS_NFS_RESPONSE_BUFFER_DIRECT_KEY,
+                NfsConfigKeys.DFS_NFS_RESPONSE_BUFFER_DIRECT_DEFAULT);
+        infoServer = new Nfs3HttpServer(config, this);
     }
 
     public static RpcProgramNfs3 createRpcProgramNfs3(NfsConfiguration config,
@@ -138,7 +176,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                 + config.getInt(NfsConfigKeys.DFS_NFS_SERVER_PORT_KEY,
                 NfsConfigKeys.DFS_NFS_SERVER_PORT_DEFAULT);
         LOG.info(displayName);
-//        metrics = Nfs3Metrics.create(config, displayName);
+        metrics = Nfs3Metrics.create(config, displayName);
         return new RpcProgramNfs3(config, registrationSocket, allowInsecurePorts);
     }
 
@@ -165,7 +203,11 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
 //            metrics.getJvmMetrics().setPauseMonitor(pauseMonitor);
         }
         writeManager.startAsyncDataService();
-        //            infoServer.start();
+        try {
+            infoServer.start();
+        } catch (IOException e) {
+            LOG.error("failed to start web server", e);
+        }
     }
 
     @Override
@@ -173,10 +215,23 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         if (writeManager != null) {
             writeManager.shutdownAsyncDataService();
         }
+        if (readAheadService != null) {
+            readAheadService.shutdown();
+        }
         if (pauseMonitor != null) {
             pauseMonitor.stop();
         }
+        if (metrics != null) {
+            metrics.shutdown();
+        }
         // Stop the web server
+        if (infoServer != null) {
+            try {
+                infoServer.stop();
+            } catch (Exception e) {
+                LOG.warn("Exception shutting down web server", e);
+            }
+        }
     }
 
     // Checks the type of IOException and maps it to appropriate Nfs3Status code.
@@ -342,6 +397,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         String fileIdPath = Nfs3Utils.getFileIdPath(handle);
         Nfs3FileAttributes preOpAttr = null;
         try {
+            // Not from the cache, the ctime guard needs the current value
             preOpAttr = Nfs3Utils.getFileAttr(dfsClient, fileIdPath, iug);
             if (preOpAttr == null) {
                 LOG.info("Can't get path for fileId: " + handle.getFileId());
@@ -362,13 +418,18 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                         preOpWcc, preOpAttr));
             }
 
+            attrCache.invalidate(handle);
+            readAheadService.invalidate(handle.getFileId());
+            blockCache.invalidate(handle.getFileId());
             setattrInternal(dfsClient, fileIdPath, request.getAttr(), true);
-            Nfs3FileAttributes postOpAttr = Nfs3Utils.getFileAttr(dfsClient,
+            attrCache.invalidate(handle);
+            Nfs3FileAttributes postOpAttr = attrCache.getFileAttr(dfsClient,
                     fileIdPath, iug);
             WccData wccData = new WccData(preOpWcc, postOpAttr);
             return new SETATTR3Response(Nfs3Status.NFS3_OK, wccData);
         } catch (IOException e) {
             LOG.warn("Exception ", e);
+            attrCache.invalidate(handle);
             WccData wccData = null;
             try {
                 wccData = Nfs3Utils.createWccData(Nfs3Utils.getWccAttr(preOpAttr),
@@ -420,21 +481,43 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
 
         try {
             String dirFileIdPath = Nfs3Utils.getFileIdPath(dirHandle);
-            Nfs3FileAttributes postOpObjAttr = writeManager.getFileAttr(dfsClient,
-                    dirHandle, fileName);
+            Nfs3FileAttributes postOpDirAttr = attrCache.getFileAttr(dfsClient,
+                    dirFileIdPath, iug);
+            Nfs3FileAttributes postOpObjAttr = null;
+            boolean resolved = false;
+            // The cache is shared by all the users, only the backend lookup
+            // checks the permissions. A user who can't search the directory
+            // goes to the backend.
+            Long childFileId = postOpDirAttr == null
+                    || !canLookup(securityHandler, postOpDirAttr) ? null
+                    : dentryCache.get(postOpDirAttr, fileName);
+            if (childFileId != null) {
+                if (childFileId == Nfs3DentryCache.NONEXISTENT) {
+                    resolved = true;
+                } else {
+                    postOpObjAttr = writeManager.getFileAttr(dfsClient,
+                            new FileHandle(childFileId), iug);
+                    // The child may be gone, then look the name up again
+                    resolved = postOpObjAttr != null;
+                }
+            }
+            if (!resolved) {
+                postOpObjAttr = writeManager.getFileAttr(dfsClient, dirHandle,
+                        fileName);
+                if (postOpDirAttr != null) {
+                    dentryCache.put(postOpDirAttr, fileName, postOpObjAttr);
+                }
+            }
+
             if (postOpObjAttr == null) {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("NFS LOOKUP fileId: " + dirHandle.getFileId() + " name: "
                             + fileName + " does not exist");
                 }
-                Nfs3FileAttributes postOpDirAttr = Nfs3Utils.getFileAttr(dfsClient,
-                        dirFileIdPath, iug);
                 return new LOOKUP3Response(Nfs3Status.NFS3ERR_NOENT, null, null,
                         postOpDirAttr);
             }
 
-            Nfs3FileAttributes postOpDirAttr = Nfs3Utils.getFileAttr(dfsClient,
-                    dirFileIdPath, iug);
             if (postOpDirAttr == null) {
                 LOG.info("Can't get path for dir fileId: " + dirHandle.getFileId());
                 return new LOOKUP3Response(Nfs3Status.NFS3ERR_STALE);
@@ -450,6 +533,15 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         }
     }
 
+    /** @return true if the user can look names up in the directory */
+    private static boolean canLookup(SecurityHandler securityHandler,
+            Nfs3FileAttributes dirAttrs) {
+        int access = Nfs3Utils.getAccessRightsForUserGroup(
+                securityHandler.getUid(), securityHandler.getGid(),
+                securityHandler.getAuxGids(), dirAttrs);
+        return (access & Nfs3Constant.ACCESS3_LOOKUP) != 0;
+    }
+
     @Override
     public ACCESS3Response access(XDR xdr, RpcInfo info) {
         return access(xdr, getSecurityHandler(info), info.remoteAddress());
@@ -564,7 +656,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         try {
             String target = dfsClient.getLinkTarget(fileIdPath);
 
-            Nfs3FileAttributes postOpAttr = Nfs3Utils.getFileAttr(dfsClient,
+            Nfs3FileAttributes postOpAttr = attrCache.getFileAttr(dfsClient,
                     fileIdPath, iug);
             if (postOpAttr == null) {
                 LOG.info("Can't get path for fileId: " + handle.getFileId());
@@ -671,68 +763,157 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             }
         }
 
-        // In case there is buffered data for the same file, flush it. This can be
-        // optimized later by reading from the cache.
-        int ret = writeManager.commitBeforeRead(dfsClient, handle, offset + count);
-        if (ret != Nfs3Status.NFS3_OK) {
-            LOG.warn("commitBeforeRead didn't succeed with ret=" + ret
-                    + ". Read may not get most recent data.");
+        // Writes still buffered in the gateway are served from the buffer. Only
+        // the range below the next write offset has to be read from the backend,
+        // in case there is data written to the stream but not synced yet.
+        OpenFileCtx openFileCtx = writeManager.getOpenFileCtx(handle);
+        List<WriteCtx> pendingWrites = Collections.emptyList();
+        long backendEnd = offset + count;
+        if (openFileCtx != null) {
+            pendingWrites = openFileCtx.getPendingWrites(offset, count);
+            backendEnd = Math.min(backendEnd, openFileCtx.getNextOffset());
+        }
+        if (backendEnd > offset) {
+            int ret = writeManager.commitBeforeRead(dfsClient, handle, backendEnd);
+            if (ret != Nfs3Status.NFS3_OK) {
+                LOG.warn("commitBeforeRead didn't succeed with ret=" + ret
+                        + ". Read may not get most recent data.");
+            }
         }
 
+        int rtmax = config.getInt(NfsConfigKeys.DFS_NFS_MAX_READ_TRANSFER_SIZE_KEY,
+                NfsConfigKeys.DFS_NFS_MAX_READ_TRANSFER_SIZE_DEFAULT);
+        int buffSize = Math.min(rtmax, count);
+        // The read data goes into a pooled buffer which is sent as is after the
+        // reply header, and returned to the pool once it has been written out.
+        // The backend reads into arrays, so it is a heap buffer.
+        ByteBuffer dataBuffer = responseBufferPool == null ? ByteBuffer
+                .allocate(buffSize) : responseBufferPool.getBuffer(false, buffSize);
+        boolean sent = false;
         try {
-            int rtmax = config.getInt(NfsConfigKeys.DFS_NFS_MAX_READ_TRANSFER_SIZE_KEY,
-                    NfsConfigKeys.DFS_NFS_MAX_READ_TRANSFER_SIZE_DEFAULT);
-            int buffSize = Math.min(rtmax, count);
-            byte[] readbuffer = new byte[buffSize];
+            byte[] readbuffer = dataBuffer.array();
+            count = buffSize;
 
+            // The backend streams are shared by all users reading a file, so
+            // the read permission is checked here instead of by the backend
+            Nfs3FileAttributes readAttrs = getReadableAttrs(dfsClient,
+                    securityHandler, handle);
             int readCount = 0;
-            /**
-             * Retry exactly once because the DFSInputStream can be stale.
-             */
-            for (int i = 0; i < 1; ++i) {
-                FSDataInputStream fis = clientCache.getDfsInputStream(userName,
-                        Nfs3Utils.getFileIdPath(handle));
-
-                if (fis == null) {
-                    return new READ3Response(Nfs3Status.NFS3ERR_ACCES);
-                }
-
-                try {
-                    readCount = fis.read(offset, readbuffer, 0, count);
-//                    metrics.incrBytesRead(readCount);
-                } catch (IOException e) {
-                    // TODO: A cleaner way is to throw a new type of exception
-                    // which requires incompatible changes.
-                    if (e.getMessage().equals("Stream closed")) {
-                        clientCache.invalidateDfsInputStream(userName,
-                                Nfs3Utils.getFileIdPath(handle));
-                        continue;
-                    } else {
-                        throw e;
-                    }
-                }
+            if (openFileCtx == null && blockCache.isEnabled()) {
+                readCount = readFromBlockCache(userName, handle.getFileId(),
+                        readAttrs, offset, readbuffer, count);
+                metrics.incrBytesRead(readCount);
+            } else if (backendEnd > offset) {
+                // No read-ahead while the file is being written
+                readCount = readFromBackend(userName, handle.getFileId(),
+                        readAttrs.getMtime().getMilliSeconds(), offset,
+                        readbuffer, 0, count, openFileCtx == null);
+                metrics.incrBytesRead(readCount);
+            }
+            // HDFS returns -1 for read beyond file size.
+            if (readCount < 0) {
+                readCount = 0;
+            }
+            if (!pendingWrites.isEmpty()) {
+                readCount = OpenFileCtx.readPendingWrites(pendingWrites, offset,
+                        readbuffer, count, readCount);
             }
 
-            attrs = Nfs3Utils.getFileAttr(dfsClient, Nfs3Utils.getFileIdPath(handle),
-                    iug);
+            attrs = writeManager.getFileAttr(dfsClient, handle, iug);
+            if (offset + readCount > attrs.getSize()) {
+                // Buffered writes beyond the next write offset
+                attrs.setSize(offset + readCount);
+                attrs.setUsed(offset + readCount);
+            }
             if (readCount < count) {
                 LOG.info("Partical read. Asked offset: " + offset + " count: " + count
                         + " and read back: " + readCount + " file size: "
                         + attrs.getSize());
             }
-            // HDFS returns -1 for read beyond file size.
-            if (readCount < 0) {
-                readCount = 0;
-            }
             eof = (offset + readCount) >= attrs.getSize();
+            sent = true;
             return new READ3Response(Nfs3Status.NFS3_OK, attrs, readCount, eof,
-                    ByteBuffer.wrap(readbuffer));
+                    dataBuffer, responseBufferPool);
 
         } catch (IOException e) {
             LOG.warn("Read error: " + e.getClass() + " offset: " + offset
                     + " count: " + count, e);
             int status = mapErrorStatus(e);
             return new READ3Response(status);
+        } finally {
+            if (!sent && responseBufferPool != null) {
+                responseBufferPool.putBuffer(dataBuffer);
+            }
+            for (WriteCtx writeCtx : pendingWrites) {
+                writeCtx.release();
+            }
+        }
+    }
+
+    /**
+     * @return the attributes of the file
+     * @throws AccessControlException if the user can't read the file
+     */
+    private Nfs3FileAttributes getReadableAttrs(DFSClient dfsClient,
+            SecurityHandler securityHandler, FileHandle handle) throws IOException {
+        Nfs3FileAttributes attrs = attrCache.getFileAttr(dfsClient,
+                Nfs3Utils.getFileIdPath(handle), iug);
+        if (attrs == null) {
+            throw new FileNotFoundException("Can't get path for fileId: "
+                    + handle.getFileId());
+        }
+        int access = Nfs3Utils.getAccessRightsForUserGroup(
+                securityHandler.getUid(), securityHandler.getGid(),
+                securityHandler.getAuxGids(), attrs);
+        if ((access & Nfs3Constant.ACCESS3_READ) == 0) {
+            throw new AccessControlException("No read access to fileId: "
+                    + handle.getFileId());
+        }
+        return attrs;
+    }
+
+    /**
+     * Read through the block cache. The backend is only read to load the blocks
+     * that are missing.
+     */
+    private int readFromBlockCache(final String userName, final long fileId,
+            final Nfs3FileAttributes attrs, long offset, byte[] readbuffer,
+            int count) throws IOException {
+        final long mtime = attrs.getMtime().getMilliSeconds();
+        return blockCache.read(fileId, mtime, attrs.getSize(), offset,
+                readbuffer, count, new Nfs3BlockCache.Loader() {
+                    @Override
+                    public int load(long position, byte[] buf, int off, int len)
+                            throws IOException {
+                        // Whole blocks, let read-ahead see the sequential pattern
+                        return readFromBackend(userName, fileId, mtime, position,
+                                buf, off, len, off == 0);
+                    }
+                });
+    }
+
+    /**
+     * Read from the shared backend stream of the file. A stream that fails is
+     * dropped from the cache so that the next read opens a new one.
+     */
+    private int readFromBackend(String userName, long fileId, long mtime,
+            long position, byte[] buf, int off, int len, boolean readAhead)
+            throws IOException {
+        DFSClientCache.ReadHandle h = clientCache.getReadHandle(userName, fileId,
+                mtime);
+        if (h == null) {
+            throw new AccessControlException("Can't open fileId: " + fileId);
+        }
+        try {
+            if (readAhead && off == 0) {
+                return readAheadService.read(userName, h, position, buf, len);
+            }
+            return h.read(position, buf, off, len);
+        } catch (IOException e) {
+            clientCache.invalidateReadHandle(h);
+            throw e;
+        } finally {
+            h.release();
         }
     }
 
@@ -768,8 +949,8 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         long offset = request.getOffset();
         int count = request.getCount();
         WriteStableHow stableHow = request.getStableHow();
-        byte[] data = request.getData().array();
-        if (data.length < count) {
+        ByteBuffer data = request.getData();
+        if (data.remaining() < count) {
             LOG.error("Invalid argument, data size is less than count in request");
             return new WRITE3Response(Nfs3Status.NFS3ERR_INVAL);
         }
@@ -800,11 +981,13 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                         + preOpAttr.getSize());
             }
 
+            readAheadService.invalidate(handle.getFileId());
+            blockCache.invalidate(handle.getFileId());
             writeManager.handleWrite(dfsClient, request, channel, xid, preOpAttr);
 
         } catch (IOException e) {
             LOG.info("Error writing to fileId " + handle.getFileId() + " at offset "
-                    + offset + " and length " + data.length, e);
+                    + offset + " and length " + data.remaining(), e);
             // Try to return WccData
             Nfs3FileAttributes postOpAttr = null;
             try {
@@ -870,7 +1053,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         FileHandle fileHandle = null;
         WccData dirWcc = null;
         try {
-            preOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+            preOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
             if (preOpDirAttr == null) {
                 LOG.error("Can't get path for dirHandle: " + dirHandle);
                 return new CREATE3Response(Nfs3Status.NFS3ERR_STALE);
@@ -908,14 +1091,19 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                 setattrInternal(dfsClient, fileIdPath, setAttr3, false);
             }
 
-            postOpObjAttr = Nfs3Utils.getFileAttr(dfsClient, fileIdPath, iug);
+            attrCache.invalidate(dirHandle);
+            dentryCache.invalidate(dirHandle, fileName);
+            listingCache.invalidate(dirHandle);
+            postOpObjAttr = attrCache.getFileAttr(dfsClient, fileIdPath, iug);
             dirWcc = Nfs3Utils.createWccData(Nfs3Utils.getWccAttr(preOpDirAttr),
                     dfsClient, dirFileIdPath, iug);
 
             // Add open stream
 //            OpenFileCtx openFileCtx = new OpenFileCtx(fos, postOpObjAttr,
-//                    writeDumpDir + "/" + postOpObjAttr.getFileId(), dfsClient, iug,
-//                    aixCompatMode, config);
+//                    writeManager.getSpillLog(), dfsClient, iug,
+//                    aixCompatMode, config, attrCache,
+//                    writeManager.getWriteBufferPool(),
+//                    writeManager.getWriteMemoryBudget());
             OpenFileCtx openFileCtx = null;
             fileHandle = new FileHandle(postOpObjAttr.getFileId());
             if (!writeManager.addOpenFileStream(fileHandle, openFileCtx)) {
@@ -1000,7 +1188,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         Nfs3FileAttributes postOpObjAttr = null;
         FileHandle objFileHandle = null;
         try {
-            preOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+            preOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
             if (preOpDirAttr == null) {
                 LOG.info("Can't get path for dir fileId: " + dirHandle.getFileId());
                 return new MKDIR3Response(Nfs3Status.NFS3ERR_STALE);
@@ -1017,7 +1205,11 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                     SetAttr3.SetAttrField.MODE) ? new FsPermission((short) setAttr3.getMode())
                     : FsPermission.getDefault().applyUMask(umask);
 
-            if (!dfsClient.mkdirs(fileIdPath, permission, false)) {
+            boolean created = dfsClient.mkdirs(fileIdPath, permission, false);
+            attrCache.invalidate(dirHandle);
+            dentryCache.invalidate(dirHandle, fileName);
+            listingCache.invalidate(dirHandle);
+            if (!created) {
                 WccData dirWcc = Nfs3Utils.createWccData(
                         Nfs3Utils.getWccAttr(preOpDirAttr), dfsClient, dirFileIdPath, iug);
                 return new MKDIR3Response(Nfs3Status.NFS3ERR_IO, null, null, dirWcc);
@@ -1030,7 +1222,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             }
             setattrInternal(dfsClient, fileIdPath, setAttr3, false);
 
-            postOpObjAttr = Nfs3Utils.getFileAttr(dfsClient, fileIdPath, iug);
+            postOpObjAttr = attrCache.getFileAttr(dfsClient, fileIdPath, iug);
             objFileHandle = new FileHandle(postOpObjAttr.getFileId());
             WccData dirWcc = Nfs3Utils.createWccData(
                     Nfs3Utils.getWccAttr(preOpDirAttr), dfsClient, dirFileIdPath, iug);
@@ -1041,7 +1233,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             // Try to return correct WccData
             if (postOpDirAttr == null) {
                 try {
-                    postOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+                    postOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
                 } catch (IOException e1) {
                     LOG.info("Can't get postOpDirAttr for " + dirFileIdPath, e);
                 }
@@ -1092,7 +1284,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         Nfs3FileAttributes preOpDirAttr = null;
         Nfs3FileAttributes postOpDirAttr = null;
         try {
-            preOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+            preOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
             if (preOpDirAttr == null) {
                 LOG.info("Can't get path for dir fileId: " + dirHandle.getFileId());
                 return new REMOVE3Response(Nfs3Status.NFS3ERR_STALE);
@@ -1114,6 +1306,12 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             }
 
             boolean result = dfsClient.delete(fileIdPath, false);
+            attrCache.invalidate(dirHandle);
+            attrCache.invalidate(fstat.getFileId());
+            readAheadService.invalidate(fstat.getFileId());
+            blockCache.invalidate(fstat.getFileId());
+            dentryCache.invalidate(dirHandle, fileName);
+            listingCache.invalidate(dirHandle);
             WccData dirWcc = Nfs3Utils.createWccData(
                     Nfs3Utils.getWccAttr(preOpDirAttr), dfsClient, dirFileIdPath, iug);
 
@@ -1126,7 +1324,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             // Try to return correct WccData
             if (postOpDirAttr == null) {
                 try {
-                    postOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+                    postOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
                 } catch (IOException e1) {
                     LOG.info("Can't get postOpDirAttr for " + dirFileIdPath, e1);
                 }
@@ -1173,7 +1371,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         Nfs3FileAttributes preOpDirAttr = null;
         Nfs3FileAttributes postOpDirAttr = null;
         try {
-            preOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+            preOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
             if (preOpDirAttr == null) {
                 LOG.info("Can't get path for dir fileId: " + dirHandle.getFileId());
                 return new RMDIR3Response(Nfs3Status.NFS3ERR_STALE);
@@ -1199,6 +1397,10 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             }
 
             boolean result = dfsClient.delete(fileIdPath, false);
+            attrCache.invalidate(dirHandle);
+            attrCache.invalidate(fstat.getFileId());
+            dentryCache.invalidate(dirHandle, fileName);
+            listingCache.invalidate(dirHandle);
             WccData dirWcc = Nfs3Utils.createWccData(
                     Nfs3Utils.getWccAttr(preOpDirAttr), dfsClient, dirFileIdPath, iug);
             if (!result) {
@@ -1211,7 +1413,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             // Try to return correct WccData
             if (postOpDirAttr == null) {
                 try {
-                    postOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+                    postOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
                 } catch (IOException e1) {
                     LOG.info("Can't get postOpDirAttr for " + dirFileIdPath, e1);
                 }
@@ -1264,14 +1466,14 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         WccData fromDirWcc = null;
         WccData toDirWcc = null;
         try {
-            fromPreOpAttr = Nfs3Utils.getFileAttr(dfsClient, fromDirFileIdPath, iug);
+            fromPreOpAttr = attrCache.getFileAttr(dfsClient, fromDirFileIdPath, iug);
             if (fromPreOpAttr == null) {
                 LOG.info("Can't get path for fromHandle fileId: "
                         + fromHandle.getFileId());
                 return new RENAME3Response(Nfs3Status.NFS3ERR_STALE);
             }
 
-            toPreOpAttr = Nfs3Utils.getFileAttr(dfsClient, toDirFileIdPath, iug);
+            toPreOpAttr = attrCache.getFileAttr(dfsClient, toDirFileIdPath, iug);
             if (toPreOpAttr == null) {
                 LOG.info("Can't get path for toHandle fileId: " + toHandle.getFileId());
                 return new RENAME3Response(Nfs3Status.NFS3ERR_STALE);
@@ -1289,6 +1491,12 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             String dst = toDirFileIdPath + "/" + toName;
 
             dfsClient.rename(src, dst, Options.Rename.NONE);
+            attrCache.invalidate(fromHandle);
+            attrCache.invalidate(toHandle);
+            dentryCache.invalidate(fromHandle, fromName);
+            dentryCache.invalidate(toHandle, toName);
+            listingCache.invalidate(fromHandle);
+            listingCache.invalidate(toHandle);
 
             // Assemble the reply
             fromDirWcc = Nfs3Utils.createWccData(Nfs3Utils.getWccAttr(fromPreOpAttr),
@@ -1362,6 +1570,9 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             dirWcc.setPreOpAttr(preOpAttr);
 
             dfsClient.createSymlink(symData, linkIdPath, false);
+            attrCache.invalidate(dirHandle);
+            dentryCache.invalidate(dirHandle, name);
+            listingCache.invalidate(dirHandle);
             // Set symlink attr is considered as to change the attr of the target
             // file. So no need to set symlink attr here after it's created.
 
@@ -1369,7 +1580,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             Nfs3FileAttributes objAttr = Nfs3Utils.getNfs3FileAttrFromFileStatus(
                     linkstat, iug);
             dirWcc
-                    .setPostOpAttr(Nfs3Utils.getFileAttr(dfsClient, linkDirIdPath, iug));
+                    .setPostOpAttr(attrCache.getFileAttr(dfsClient, linkDirIdPath, iug));
 
             return new SYMLINK3Response(Nfs3Status.NFS3_OK, new FileHandle(
                     objAttr.getFileId()), objAttr, dirWcc);
@@ -1411,6 +1622,75 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         return dlisting;
     }
 
+    /**
+     * Used by readdir and readdirplus to get the dirents after the cookie. Pages
+     * are served from the listing cache when it has them, otherwise they are
+     * listed from the backend and added to the cache. The cache is shared by
+     * all the users, it's only used if the user can read the directory.
+     */
+    private DirectoryListing listPaths(DFSClient dfsClient,
+            SecurityHandler securityHandler, String dirFileIdPath,
+            HdfsFileStatus dirStatus, long cookie, long count) throws IOException {
+        long dirFileId = dirStatus.getFileId();
+        long mtime = dirStatus.getModificationTime();
+        if (canReadDir(securityHandler, dirStatus)) {
+            DirectoryListing dlisting = listingCache.getListing(dirFileId, mtime,
+                    cookie, count);
+            if (dlisting != null) {
+                return dlisting;
+            }
+        }
+        DirectoryListing dlisting;
+
+        // Get the list from the resume point
+        byte[] startAfter;
+        if (cookie == 0) {
+            startAfter = HdfsFileStatus.EMPTY_NAME;
+        } else {
+            String inodeIdPath = Nfs3Utils.getFileIdPath(cookie);
+            startAfter = inodeIdPath.getBytes(Charset.forName("UTF-8"));
+        }
+        dlisting = listPaths(dfsClient, dirFileIdPath, startAfter);
+        listingCache.addListing(dirFileId, mtime, cookie, dlisting);
+        return dlisting;
+    }
+
+    /** @return true if the user can read the directory */
+    private boolean canReadDir(SecurityHandler securityHandler,
+            HdfsFileStatus dirStatus) {
+        int access = Nfs3Utils.getAccessRightsForUserGroup(
+                securityHandler.getUid(), securityHandler.getGid(),
+                securityHandler.getAuxGids(),
+                Nfs3Utils.getNfs3FileAttrFromFileStatus(dirStatus, iug));
+        return (access & Nfs3Constant.ACCESS3_READ) != 0;
+    }
+
+    /**
+     * Get the status of "..", from the listing cache if possible and the user
+     * can read the directory.
+     */
+    private HdfsFileStatus getParentStatus(DFSClient dfsClient,
+            SecurityHandler securityHandler, String dirFileIdPath,
+            HdfsFileStatus dirStatus) throws IOException {
+        if (canReadDir(securityHandler, dirStatus)) {
+            HdfsFileStatus dotdotStatus = listingCache.getParent(
+                    dirStatus.getFileId(), dirStatus.getModificationTime());
+            if (dotdotStatus != null) {
+                return dotdotStatus;
+            }
+        }
+        String dotdotFileIdPath = dirFileIdPath + "/..";
+        HdfsFileStatus dotdotStatus = dfsClient.getFileInfo(dotdotFileIdPath);
+        if (dotdotStatus == null) {
+            // This should not happen
+            throw new IOException("Can't get path for handle path: "
+                    + dotdotFileIdPath);
+        }
+        listingCache.putParent(dirStatus.getFileId(),
+                dirStatus.getModificationTime(), dotdotStatus);
+        return dotdotStatus;
+    }
+
     @Override
     public READDIR3Response readdir(XDR xdr, RpcInfo info) {
         return readdir(xdr, getSecurityHandler(info), info.remoteAddress());
@@ -1491,34 +1771,19 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                             + " dir cookieVerf: " + dirStatus.getModificationTime());
                     return new READDIR3Response(
                             Nfs3Status.NFS3ERR_BAD_COOKIE,
-                            Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug));
+                            attrCache.getFileAttr(dfsClient, dirFileIdPath, iug));
                 }
             }
 
             if (cookie == 0) {
                 // Get dotdot fileId
-                String dotdotFileIdPath = dirFileIdPath + "/..";
-                HdfsFileStatus dotdotStatus = dfsClient.getFileInfo(dotdotFileIdPath);
-
-                if (dotdotStatus == null) {
-                    // This should not happen
-                    throw new IOException("Can't get path for handle path: "
-                            + dotdotFileIdPath);
-                }
-                dotdotFileId = dotdotStatus.getFileId();
+                dotdotFileId = getParentStatus(dfsClient, securityHandler,
+                        dirFileIdPath, dirStatus).getFileId();
             }
 
-            // Get the list from the resume point
-            byte[] startAfter;
-            if (cookie == 0) {
-                startAfter = HdfsFileStatus.EMPTY_NAME;
-            } else {
-                String inodeIdPath = Nfs3Utils.getFileIdPath(cookie);
-                startAfter = inodeIdPath.getBytes(Charset.forName("UTF-8"));
-            }
-
-            dlisting = listPaths(dfsClient, dirFileIdPath, startAfter);
-            postOpAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+            dlisting = listPaths(dfsClient, securityHandler, dirFileIdPath,
+                    dirStatus, cookie, cookie == 0 ? count - 2 : count);
+            postOpAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
             if (postOpAttr == null) {
                 LOG.error("Can't get path for fileId: " + handle.getFileId());
                 return new READDIR3Response(Nfs3Status.NFS3ERR_STALE);
@@ -1656,35 +1921,21 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                             + " dir cookieverf: " + dirStatus.getModificationTime());
                     return new READDIRPLUS3Response(
                             Nfs3Status.NFS3ERR_BAD_COOKIE,
-                            Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug),
+                            attrCache.getFileAttr(dfsClient, dirFileIdPath, iug),
                             0, null);
                 }
             }
 
             if (cookie == 0) {
                 // Get dotdot fileId
-                String dotdotFileIdPath = dirFileIdPath + "/..";
-                dotdotStatus = dfsClient.getFileInfo(dotdotFileIdPath);
-
-                if (dotdotStatus == null) {
-                    // This should not happen
-                    throw new IOException("Can't get path for handle path: "
-                            + dotdotFileIdPath);
-                }
+                dotdotStatus = getParentStatus(dfsClient, securityHandler,
+                        dirFileIdPath, dirStatus);
                 dotdotFileId = dotdotStatus.getFileId();
             }
 
-            // Get the list from the resume point
-            byte[] startAfter;
-            if (cookie == 0) {
-                startAfter = HdfsFileStatus.EMPTY_NAME;
-            } else {
-                String inodeIdPath = Nfs3Utils.getFileIdPath(cookie);
-                startAfter = inodeIdPath.getBytes(Charset.forName("UTF-8"));
-            }
-
-            dlisting = listPaths(dfsClient, dirFileIdPath, startAfter);
-            postOpDirAttr = Nfs3Utils.getFileAttr(dfsClient, dirFileIdPath, iug);
+            dlisting = listPaths(dfsClient, securityHandler, dirFileIdPath,
+                    dirStatus, cookie, cookie == 0 ? dirCount - 2 : dirCount);
+            postOpDirAttr = attrCache.getFileAttr(dfsClient, dirFileIdPath, iug);
             if (postOpDirAttr == null) {
                 LOG.info("Can't get path for fileId: " + handle.getFileId());
                 return new READDIRPLUS3Response(Nfs3Status.NFS3ERR_STALE);
@@ -1713,16 +1964,12 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
 
             for (int i = 2; i < n + 2; i++) {
                 long fileId = fstatus[i - 2].getFileId();
-                FileHandle childHandle = new FileHandle(fileId);
-                Nfs3FileAttributes attr;
-                try {
-                    attr = writeManager.getFileAttr(dfsClient, childHandle, iug);
-                } catch (IOException e) {
-                    LOG.error("Can't get file attributes for fileId: " + fileId, e);
-                    continue;
-                }
+                Nfs3FileAttributes attr = getEntryAttr(dfsClient, dlisting,
+                        fstatus[i - 2]);
+                dentryCache.put(postOpDirAttr, fstatus[i - 2].getLocalName(), attr);
                 entries[i] = new READDIRPLUS3Response.EntryPlus3(fileId,
-                        fstatus[i - 2].getLocalName(), fileId, attr, childHandle);
+                        fstatus[i - 2].getLocalName(), fileId, attr,
+                        new FileHandle(fileId));
             }
         } else {
             // Resume from last readdirplus. If the cookie is "..", the result
@@ -1730,16 +1977,12 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             entries = new READDIRPLUS3Response.EntryPlus3[n];
             for (int i = 0; i < n; i++) {
                 long fileId = fstatus[i].getFileId();
-                FileHandle childHandle = new FileHandle(fileId);
-                Nfs3FileAttributes attr;
-                try {
-                    attr = writeManager.getFileAttr(dfsClient, childHandle, iug);
-                } catch (IOException e) {
-                    LOG.error("Can't get file attributes for fileId: " + fileId, e);
-                    continue;
-                }
+                Nfs3FileAttributes attr = getEntryAttr(dfsClient, dlisting,
+                        fstatus[i]);
+                dentryCache.put(postOpDirAttr, fstatus[i].getLocalName(), attr);
                 entries[i] = new READDIRPLUS3Response.EntryPlus3(fileId,
-                        fstatus[i].getLocalName(), fileId, attr, childHandle);
+                        fstatus[i].getLocalName(), fileId, attr,
+                        new FileHandle(fileId));
             }
         }
 
@@ -1749,6 +1992,29 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                 dirStatus.getModificationTime(), dirListPlus);
     }
 
+    /**
+     * Get the attributes of a directory entry. A listing fresh from the backend
+     * already carries them. A listing served from the listing cache may be
+     * older than the attribute cache, so the attributes are fetched through
+     * it, and the listed ones are only used if the file can't be found.
+     */
+    private Nfs3FileAttributes getEntryAttr(DFSClient dfsClient,
+            DirectoryListing dlisting, HdfsFileStatus fs) {
+        if (!(dlisting instanceof Nfs3ListingCache.CachedListing)) {
+            return writeManager.getFileAttr(fs, true);
+        }
+        try {
+            Nfs3FileAttributes attr = writeManager.getFileAttr(dfsClient,
+                    new FileHandle(fs.getFileId()), iug);
+            if (attr != null) {
+                return attr;
+            }
+        } catch (IOException e) {
+            LOG.warn("Can't get file attributes for fileId: " + fs.getFileId(), e);
+        }
+        return writeManager.getFileAttr(fs, false);
+    }
+
     @Override
     public FSSTAT3Response fsstat(XDR xdr, RpcInfo info) {
         return fsstat(xdr, getSecurityHandler(info), info.remoteAddress());
@@ -1871,7 +2137,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
                     NfsConfigKeys.DFS_NFS_MAX_READDIR_TRANSFER_SIZE_KEY,
                     NfsConfigKeys.DFS_NFS_MAX_READDIR_TRANSFER_SIZE_DEFAULT);
 
-            Nfs3FileAttributes attrs = Nfs3Utils.getFileAttr(dfsClient,
+            Nfs3FileAttributes attrs = attrCache.getFileAttr(dfsClient,
                     Nfs3Utils.getFileIdPath(handle), iug);
             if (attrs == null) {
                 LOG.info("Can't get path for fileId: " + handle.getFileId());
@@ -1928,7 +2194,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         }
 
         try {
-            attrs = Nfs3Utils.getFileAttr(dfsClient, Nfs3Utils.getFileIdPath(handle),
+            attrs = attrCache.getFileAttr(dfsClient, Nfs3Utils.getFileIdPath(handle),
                     iug);
             if (attrs == null) {
                 LOG.info("Can't get path for fileId: " + handle.getFileId());
@@ -1982,7 +2248,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         String fileIdPath = Nfs3Utils.getFileIdPath(handle);
         Nfs3FileAttributes preOpAttr = null;
         try {
-            preOpAttr = Nfs3Utils.getFileAttr(dfsClient, fileIdPath, iug);
+            preOpAttr = attrCache.getFileAttr(dfsClient, fileIdPath, iug);
             if (preOpAttr == null) {
                 LOG.info("Can't get path for fileId: " + handle.getFileId());
                 return new COMMIT3Response(Nfs3Status.NFS3ERR_STALE);
@@ -2037,9 +2303,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
         RpcCall rpcCall = (RpcCall) info.header();
         final NFSPROC3 nfsproc3 = NFSPROC3.fromValue(rpcCall.getProcedure());
         int xid = rpcCall.getXid();
-        byte[] data = new byte[info.data().readableBytes()];
-        info.data().readBytes(data);
-        XDR xdr = new XDR(data);
+        XDR xdr = new XDR(info.data());
         XDR out = new XDR();
         InetAddress client = ((InetSocketAddress) info.remoteAddress())
                 .getAddress();
@@ -2067,7 +2331,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
 
         if (!isIdempotent(rpcCall)) {
             RpcCallCache.CacheEntry entry = rpcCallCache.checkOrAddToCache(client,
-                    xid);
+                    xid, rpcCall.getProcedure());
             if (entry != null) { // in cache
                 if (entry.isCompleted()) {
                     LOG.info("Sending the cached reply to retransmitted request " + xid);
@@ -2091,19 +2355,19 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             response = nullProcedure();
         } else if (nfsproc3 == NFSPROC3.GETATTR) {
             response = getattr(xdr, info);
-//            metrics.addGetattr(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addGetattr(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.SETATTR) {
             response = setattr(xdr, info);
-//            metrics.addSetattr(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addSetattr(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.LOOKUP) {
             response = lookup(xdr, info);
-//            metrics.addLookup(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addLookup(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.ACCESS) {
             response = access(xdr, info);
-//            metrics.addAccess(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addAccess(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.READLINK) {
             response = readlink(xdr, info);
-//            metrics.addReadlink(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addReadlink(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.READ) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug(Nfs3Utils.READ_RPC_START + xid);
@@ -2112,7 +2376,7 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             if (LOG.isDebugEnabled() && (nfsproc3 == NFSPROC3.READ)) {
                 LOG.debug(Nfs3Utils.READ_RPC_END + xid);
             }
-//            metrics.addRead(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addRead(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.WRITE) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug(Nfs3Utils.WRITE_RPC_START + xid);
@@ -2121,43 +2385,43 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             // Write end debug trace is in Nfs3Utils.writeChannel
         } else if (nfsproc3 == NFSPROC3.CREATE) {
             response = create(xdr, info);
-//            metrics.addCreate(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addCreate(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.MKDIR) {
             response = mkdir(xdr, info);
-//            metrics.addMkdir(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addMkdir(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.SYMLINK) {
             response = symlink(xdr, info);
-//            metrics.addSymlink(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addSymlink(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.MKNOD) {
             response = mknod(xdr, info);
-//            metrics.addMknod(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addMknod(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.REMOVE) {
             response = remove(xdr, info);
-//            metrics.addRemove(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addRemove(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.RMDIR) {
             response = rmdir(xdr, info);
-//            metrics.addRmdir(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addRmdir(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.RENAME) {
             response = rename(xdr, info);
-//            metrics.addRename(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addRename(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.LINK) {
             response = link(xdr, info);
-//            metrics.addLink(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addLink(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.READDIR) {
             response = readdir(xdr, info);
-//            metrics.addReaddir(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addReaddir(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.READDIRPLUS) {
             response = readdirplus(xdr, info);
-//            metrics.addReaddirplus(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addReaddirplus(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.FSSTAT) {
             response = fsstat(xdr, info);
-//            metrics.addFsstat(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addFsstat(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.FSINFO) {
             response = fsinfo(xdr, info);
-//            metrics.addFsinfo(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addFsinfo(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.PATHCONF) {
             response = pathconf(xdr, info);
-//            metrics.addPathconf(Nfs3Utils.getElapsedTime(startTime));
+            metrics.addPathconf(Nfs3Utils.getElapsedTime(startTime));
         } else if (nfsproc3 == NFSPROC3.COMMIT) {
             response = commit(xdr, info);
         } else {
@@ -2173,19 +2437,50 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
             }
             return;
         }
-        // TODO: currently we just return VerifierNone
-        out = response.serialize(out, xid, new VerifierNone());
-        ChannelBuffer buf = ChannelBuffers.wrappedBuffer(out.asReadOnlyWrap()
-                .buffer());
-        RpcResponse rsp = new RpcResponse(buf, info.remoteAddress());
-
+        RpcResponse rsp;
         if (!isIdempotent(rpcCall)) {
-            rpcCallCache.callCompleted(client, xid, rsp);
+            // The reply may be resent from the cache, so it gets its own buffer
+            out = new XDR(response.getSerializedSizeHint());
+            // TODO: currently we just return VerifierNone
+            ChannelBuffer buf = response.serializeToChannelBuffer(out, xid,
+                    new VerifierNone());
+            rsp = new RpcResponse(buf, info.remoteAddress());
+            rpcCallCache.callCompleted(client, xid, rpcCall.getProcedure(), rsp);
+        } else {
+            rsp = serializePooled(response, xid, info.remoteAddress());
         }
 
         RpcUtil.sendRpcResponse(ctx, rsp);
     }
 
+    /**
+     * Serialize a reply into a buffer from the pool, which goes back to the pool
+     * once the reply has been written out. The response is released at the same
+     * time, so a READ can return its data buffer as well.
+     */
+    private RpcResponse serializePooled(final NFS3Response response, int xid,
+            SocketAddress remoteAddress) {
+        int sizeHint = response.getSerializedSizeHint();
+        if (responseBufferPool == null) {
+            XDR out = new XDR(sizeHint);
+            return new RpcResponse(response.serializeToChannelBuffer(out, xid,
+                    new VerifierNone()), remoteAddress);
+        }
+
+        final ByteBuffer pooled = responseBufferPool.getBuffer(
+                directResponseBuffer, sizeHint);
+        XDR out = new XDR(pooled, XDR.State.WRITING);
+        ChannelBuffer buf = response.serializeToChannelBuffer(out, xid,
+                new VerifierNone());
+        return new RpcResponse(buf, remoteAddress, new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                responseBufferPool.putBuffer(pooled);
+                response.release();
+            }
+        });
+    }
+
     @Override
     protected boolean isIdempotent(RpcCall call) {
         final NFSPROC3 nfsproc3 = NFSPROC3.fromValue(call.getProcedure());
@@ -2219,4 +2514,21 @@ public class RpcProgramNfs3 extends RpcProgram implements Nfs3Interface {
     WriteManager getWriteManager() {
         return this.writeManager;
     }
+
+    RpcCallCache getRpcCallCache() {
+        return rpcCallCache;
+    }
+
+    DFSClientCache getClientCache() {
+        return clientCache;
+    }
+
+    JvmPauseMonitor getPauseMonitor() {
+        return pauseMonitor;
+    }
+
+    @VisibleForTesting
+    Nfs3HttpServer getInfoServer() {
+        return this.infoServer;
+    }
 }
@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * An append-only log the non-sequential writes of all the open files are
+ * dumped to. It replaces a dump file per open file, which meant thousands of
+ * small files and file descriptors with many files open.
+ * <p>
+ * The log is made of fixed size segment files, memory mapped once created, so
+ * appending is a copy into the mapping and the file is closed right away. A
+ * dumped write keeps its {@link Entry}, and is written back straight from a
+ * view of the mapping.
+ * <p>
+ * Each segment counts its live entries. Once every entry of a segment has been
+ * written back or dropped and the segment is no longer appended to, it is
+ * reset and reused, or deleted if enough segments are idle already. Entries
+ * are never moved, since a segment only becomes reusable when it's empty.
+ */
+class SpillLog {
+    private static final Log LOG = LogFactory.getLog(SpillLog.class);
+
+    /** Idle segments kept for reuse, the others are deleted */
+    private static final int MAX_IDLE_SEGMENTS = 2;
+
+    private final class Segment {
+        private final File file;
+        private final MappedByteBuffer map;
+        private int writePos;
+        private int liveEntries;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping stays valid after the file is closed
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        segmentSize);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /** The location of a dumped write in the log */
+    final class Entry {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private boolean released;
+
+        private Entry(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return a read-only view of the data in the mapping, valid until the
+         * entry is released
+         */
+        ByteBuffer getData() {
+            ByteBuffer b = segment.map.duplicate();
+            b.limit(offset + length);
+            b.position(offset);
+            return b.slice().asReadOnlyBuffer();
+        }
+
+        /** Copy len bytes of the data, starting at skip, to b */
+        void read(int skip, byte[] b, int off, int len) {
+            Preconditions.checkArgument(skip >= 0 && skip + len <= length);
+            ByteBuffer d = segment.map.duplicate();
+            d.position(offset + skip);
+            d.get(b, off, len);
+        }
+
+        /** The data is no longer needed */
+        void release() {
+            SpillLog.this.release(this);
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private Segment active;
+    private final ArrayDeque<Segment> idle = new ArrayDeque<Segment>();
+    private int nextSegmentId;
+    private int numSegments;
+    private long liveBytes;
+
+    SpillLog(String dir, NfsConfiguration config) {
+        this.dir = new File(dir);
+        segmentSize = config.getInt(NfsConfigKeys.DFS_NFS_SPILL_SEGMENT_SIZE_KEY,
+                NfsConfigKeys.DFS_NFS_SPILL_SEGMENT_SIZE_DEFAULT);
+        Preconditions.checkArgument(segmentSize > 0,
+                "Invalid spill segment size " + segmentSize);
+        LOG.info("Spill log in " + dir + " with segments of " + segmentSize
+                + " bytes");
+    }
+
+    /**
+     * Append the remaining bytes of data, without changing its position.
+     *
+     * @return the entry of the data, to be released when it's no longer needed
+     */
+    Entry append(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (length > segmentSize) {
+            throw new IOException("Write of " + length
+                    + " bytes is larger than the spill segment size " + segmentSize);
+        }
+        Entry entry;
+        synchronized (this) {
+            if (active == null || segmentSize - active.writePos < length) {
+                roll();
+            }
+            entry = new Entry(active, active.writePos, length);
+            active.writePos += length;
+            active.liveEntries++;
+            liveBytes += length;
+        }
+        // The range is reserved, copy without holding the lock
+        ByteBuffer d = entry.segment.map.duplicate();
+        d.position(entry.offset);
+        d.put(data.duplicate());
+        return entry;
+    }
+
+    /** Start appending to an idle or a new segment */
+    private void roll() throws IOException {
+        Segment old = active;
+        active = null;
+        if (old != null && old.liveEntries == 0) {
+            recycle(old);
+        }
+        Segment s = idle.pollFirst();
+        if (s == null) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create spill directory " + dir);
+            }
+            File file = new File(dir, "spill-" + nextSegmentId++);
+            LOG.info("Create spill segment " + file);
+            s = new Segment(file);
+            numSegments++;
+        }
+        active = s;
+    }
+
+    private synchronized void release(Entry entry) {
+        if (entry.released) {
+            return;
+        }
+        entry.released = true;
+        Segment s = entry.segment;
+        s.liveEntries--;
+        liveBytes -= entry.length;
+        if (s.liveEntries == 0 && s != active) {
+            recycle(s);
+        }
+    }
+
+    private void recycle(Segment s) {
+        s.writePos = 0;
+        if (idle.size() < MAX_IDLE_SEGMENTS) {
+            idle.addFirst(s);
+            return;
+        }
+        // The mapping is unmapped once garbage collected
+        numSegments--;
+        if (!s.file.delete()) {
+            LOG.warn("Failed to delete spill segment " + s.file);
+        }
+    }
+
+    /** Delete the segment files, all the entries must have been released */
+    synchronized void close() {
+        if (active != null) {
+            idle.add(active);
+            active = null;
+        }
+        for (Segment s : idle) {
+            if (s.file.exists() && !s.file.delete()) {
+                LOG.warn("Failed to delete spill segment " + s.file);
+            }
+        }
+        numSegments -= idle.size();
+        idle.clear();
+    }
+
+    /** Number of segment files */
+    synchronized int getNumSegments() {
+        return numSegments;
+    }
+
+    /** Bytes of the entries not released yet */
+    synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    @VisibleForTesting
+    synchronized int getIdleSegments() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A pool of direct buffers for the payload of buffered writes. Without it each
+ * buffered write keeps its request data on the heap until it is written back,
+ * and with many large non-sequential writes in flight that data is promoted to
+ * the old generation before it becomes garbage.
+ * <p>
+ * Buffers come in power of two size classes, from 4KB to the maximum write
+ * size. Released buffers are kept on a free list per class and reused. The
+ * direct memory of the pool, free buffers included, is bounded; when a new
+ * buffer doesn't fit, free buffers of other classes are dropped, and if that
+ * isn't enough the allocation fails and the caller keeps the data on the heap.
+ * <p>
+ * With debug logging enabled when the pool is created, every buffer handed out
+ * is tracked, and a buffer that is garbage collected without being released is
+ * reported with the stack trace of its allocation. Its memory is then given
+ * back to the pool.
+ */
+class WriteBufferPool {
+    private static final Log LOG = LogFactory.getLog(WriteBufferPool.class);
+
+    private static final int MIN_CLASS_SHIFT = 12;
+
+    /** A buffer handed out by the pool, released at most once */
+    static final class Buffer {
+        private final ByteBuffer root;
+        private final int sizeClass;
+        private final LeakTracker tracker;
+        private boolean released;
+
+        private Buffer(ByteBuffer root, int sizeClass, WriteBufferPool pool) {
+            this.root = root;
+            this.sizeClass = sizeClass;
+            this.tracker = pool.leakDetection ? pool.track(this) : null;
+        }
+
+        /** @return a view of the first size bytes of the buffer */
+        ByteBuffer view(int size) {
+            ByteBuffer b = root.duplicate();
+            b.clear();
+            b.limit(size);
+            return b;
+        }
+    }
+
+    /** Reports a buffer that became unreachable without being released */
+    private static final class LeakTracker extends PhantomReference<Buffer> {
+        private final ByteBuffer root;
+        private final int sizeClass;
+        private final Throwable allocation;
+
+        LeakTracker(Buffer b, ReferenceQueue<Buffer> queue) {
+            super(b, queue);
+            this.root = b.root;
+            this.sizeClass = b.sizeClass;
+            this.allocation = new Throwable("Allocation of a "
+                    + b.root.capacity() + " bytes write buffer");
+        }
+    }
+
+    private final int maxClass;
+    private final long maxBytes;
+    private final ArrayDeque<ByteBuffer>[] freeLists;
+    /** Direct memory of the pool, in use or free */
+    private long allocatedBytes;
+    private long usedBytes;
+    private long fallbacks;
+
+    private final boolean leakDetection;
+    private final ReferenceQueue<Buffer> leakQueue = new ReferenceQueue<Buffer>();
+    /** Trackers of the buffers in use, keeps them reachable */
+    private final Set<LeakTracker> trackers = Collections.newSetFromMap(
+            new IdentityHashMap<LeakTracker, Boolean>());
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    WriteBufferPool(NfsConfiguration config) {
+        int maxSize = config.getInt(
+                NfsConfigKeys.DFS_NFS_MAX_WRITE_TRANSFER_SIZE_KEY,
+                NfsConfigKeys.DFS_NFS_MAX_WRITE_TRANSFER_SIZE_DEFAULT);
+        maxBytes = config.getLongBytes(
+                NfsConfigKeys.DFS_NFS_WRITE_BUFFER_MAX_BYTES_KEY,
+                NfsConfigKeys.DFS_NFS_WRITE_BUFFER_MAX_BYTES_DEFAULT);
+        maxClass = sizeClass(Math.max(maxSize, 1));
+        freeLists = new ArrayDeque[maxClass + 1];
+        for (int i = 0; i <= maxClass; i++) {
+            freeLists[i] = new ArrayDeque<ByteBuffer>();
+        }
+        leakDetection = LOG.isDebugEnabled();
+        if (maxBytes <= 0) {
+            LOG.info("Write buffer pool is disabled");
+        } else {
+            LOG.info("Write buffer pool max bytes is " + maxBytes
+                    + ", leak detection is " + (leakDetection ? "on" : "off"));
+        }
+    }
+
+    /** Size class of the smallest buffer holding size bytes */
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift - MIN_CLASS_SHIFT, 0);
+    }
+
+    private static int classSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_CLASS_SHIFT);
+    }
+
+    /**
+     * Get a buffer of at least size bytes.
+     *
+     * @return the buffer, or null if the pool is disabled, size is larger than
+     * a write or the pool is out of memory
+     */
+    Buffer allocate(int size) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        if (leakDetection) {
+            reportLeaks();
+        }
+        int c = sizeClass(size);
+        ByteBuffer root = null;
+        synchronized (this) {
+            if (c <= maxClass) {
+                root = freeLists[c].pollFirst();
+                if (root == null && reserve(classSize(c))) {
+                    root = ByteBuffer.allocateDirect(classSize(c));
+                }
+            }
+            if (root == null) {
+                fallbacks++;
+                return null;
+            }
+            usedBytes += root.capacity();
+        }
+        return new Buffer(root, c, this);
+    }
+
+    /** Account for a new buffer, dropping free buffers to make room */
+    private boolean reserve(int bytes) {
+        for (int i = maxClass; i >= 0 && allocatedBytes + bytes > maxBytes; i--) {
+            // The dropped buffers are freed by the garbage collector
+            while (!freeLists[i].isEmpty() && allocatedBytes + bytes > maxBytes) {
+                allocatedBytes -= freeLists[i].pollFirst().capacity();
+            }
+        }
+        if (allocatedBytes + bytes > maxBytes) {
+            return false;
+        }
+        allocatedBytes += bytes;
+        return true;
+    }
+
+    /** Return a buffer to the pool. Releasing a buffer twice is ignored. */
+    void release(Buffer b) {
+        synchronized (b) {
+            if (b.released) {
+                LOG.warn("Write buffer released twice", new Throwable());
+                return;
+            }
+            b.released = true;
+        }
+        if (b.tracker != null) {
+            synchronized (trackers) {
+                trackers.remove(b.tracker);
+            }
+            b.tracker.clear();
+        }
+        recycle(b.root, b.sizeClass);
+    }
+
+    private synchronized void recycle(ByteBuffer root, int sizeClass) {
+        usedBytes -= root.capacity();
+        // Most recently used first, it's more likely to be in the CPU caches
+        freeLists[sizeClass].addFirst(root);
+    }
+
+    private LeakTracker track(Buffer b) {
+        LeakTracker t = new LeakTracker(b, leakQueue);
+        synchronized (trackers) {
+            trackers.add(t);
+        }
+        return t;
+    }
+
+    private void reportLeaks() {
+        LeakTracker t;
+        while ((t = (LeakTracker) leakQueue.poll()) != null) {
+            boolean leaked;
+            synchronized (trackers) {
+                leaked = trackers.remove(t);
+            }
+            if (leaked) {
+                LOG.error("Write buffer was not released before being garbage"
+                        + " collected", t.allocation);
+                recycle(t.root, t.sizeClass);
+            }
+        }
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** Number of allocations that failed, the data stayed on the heap */
+    synchronized long getFallbacks() {
+        return fallbacks;
+    }
+
+    @VisibleForTesting
+    void checkLeaks() {
+        reportLeaks();
+    }
+}
@@ -20,10 +20,9 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.channel.Channel;
 
 import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * WriteCtx saves the context of one write request, such as request, channel, xid and reply status.
@@ -62,16 +61,26 @@ class WriteCtx {
     private final Nfs3Constant.WriteStableHow stableHow;
     private volatile ByteBuffer data;
 
+    /**
+     * The pooled buffer {@link #data} is a view of, or null if the data is on the heap. It is returned to the pool
+     * when the data is dumped, or when the last reference to the write is released.
+     */
+    private final WriteBufferPool pool;
+    /** Accounts for {@link #data} while it is in memory, can be null */
+    private final WriteMemoryBudget budget;
+    private WriteBufferPool.Buffer buffer;
+    /** References to the data: one held by the {@link OpenFileCtx} until the write is done, one per reader */
+    private int refCount = 1;
+
     private final Channel channel;
     private final int xid;
     private boolean replied;
 
     /**
-     * Data belonging to the same {@link OpenFileCtx} may be dumped to a file. After being dumped to the file, the
-     * corresponding {@link WriteCtx} records the dump file and the offset.
+     * Data may be dumped to the {@link SpillLog}. After being dumped, the {@link WriteCtx} records its entry in the
+     * log, which is released with the last reference to the write.
      */
-    private RandomAccessFile raf;
-    private long dumpFileOffset;
+    private SpillLog.Entry spillEntry;
 
     private volatile DataState dataState;
     public final long startTime;
@@ -85,11 +94,10 @@ class WriteCtx {
     }
 
     /**
-     * Writing the data into a local file. After the writing, if {@link #dataState} is still ALLOW_DUMP, set {@link
+     * Writing the data into the spill log. After the writing, if {@link #dataState} is still ALLOW_DUMP, set {@link
      * #data} to null and set {@link #dataState} to DUMPED.
      */
-    long dumpData(FileOutputStream dumpOut, RandomAccessFile raf)
-            throws IOException {
+    long dumpData(SpillLog spillLog) throws IOException {
         if (dataState != DataState.ALLOW_DUMP) {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("No need to dump with status(replied,dataState):" + "("
@@ -101,12 +109,7 @@ class WriteCtx {
         // Resized write should not allow dump
         Preconditions.checkState(originalCount == INVALID_ORIGINAL_COUNT);
 
-        this.raf = raf;
-        dumpFileOffset = dumpOut.getChannel().position();
-        dumpOut.write(data.array(), 0, count);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("After dump, new dumpFileOffset:" + dumpFileOffset);
-        }
+        SpillLog.Entry entry = spillLog.append(data);
         // it is possible that while we dump the data, the data is also being
         // written back to HDFS. After dump, if the writing back has not finished
         // yet, we change its flag to DUMPED and set the data to null. Otherwise
@@ -114,12 +117,16 @@ class WriteCtx {
         if (dataState == DataState.ALLOW_DUMP) {
             synchronized (this) {
                 if (dataState == DataState.ALLOW_DUMP) {
-                    data = null;
+                    // Readers copy the data holding the lock, and read the spill
+                    // log from now on
+                    freeData();
+                    spillEntry = entry;
                     dataState = DataState.DUMPED;
                     return count;
                 }
             }
         }
+        entry.release();
         return 0;
     }
 
@@ -149,26 +156,85 @@ class WriteCtx {
                 }
             }
         }
-        // read back from dumped file
-        this.loadData();
-        return data;
-    }
-
-    private void loadData() throws IOException {
-        Preconditions.checkState(data == null);
-        byte[] rawData = new byte[count];
-        raf.seek(dumpFileOffset);
-        int size = raf.read(rawData, 0, count);
-        if (size != count) {
-            throw new IOException("Data count is " + count + ", but read back "
-                    + size + "bytes");
+        // A view of the spill log, no need to load it back
+        return spillEntry.getData();
+    }
+
+    /**
+     * Copy len bytes of the write, starting at the given file offset, to b. The
+     * range must be within the write. Dumped data is read from the spill log
+     * without loading it back into memory.
+     */
+    void readData(long fileOffset, byte[] b, int off, int len) throws IOException {
+        Preconditions.checkArgument(fileOffset >= offset
+                && fileOffset + len <= offset + count);
+        int skip = (int) (fileOffset - offset);
+        if (dataState != DataState.DUMPED) {
+            synchronized (this) {
+                if (dataState != DataState.DUMPED) {
+                    ByteBuffer d = data.duplicate();
+                    d.position(d.position() + skip);
+                    d.get(b, off, len);
+                    return;
+                }
+            }
         }
-        data = ByteBuffer.wrap(rawData);
+        // The entry is kept while the write is retained
+        spillEntry.read(skip, b, off, len);
     }
 
-    public void writeData(DataOutputStream fos) throws IOException {
-        Preconditions.checkState(fos != null);
+    /**
+     * Take a reference to the data, so that it stays readable after the write is done.
+     *
+     * @return false if the write is already done and its data released
+     */
+    synchronized boolean retain() {
+        if (refCount == 0) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
 
+    /** Release a reference to the data, the last one frees it */
+    synchronized void release() {
+        Preconditions.checkState(refCount > 0, "WriteCtx released too many times: " + this);
+        if (--refCount == 0) {
+            freeData();
+            if (spillEntry != null) {
+                spillEntry.release();
+                spillEntry = null;
+            }
+        }
+    }
+
+    private void freeData() {
+        if (data != null && budget != null) {
+            budget.addBuffered(-count);
+        }
+        data = null;
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /** Copy data into a pooled buffer, or return it as is if the pool has no room */
+    private ByteBuffer copyToPool(ByteBuffer src) {
+        buffer = pool.allocate(count);
+        if (buffer == null) {
+            return src;
+        }
+        ByteBuffer copy = buffer.view(count);
+        ByteBuffer d = src.duplicate();
+        d.limit(d.position() + count);
+        copy.put(d);
+        copy.flip();
+        return copy;
+    }
+
+    /** @return the data to write back, checked against the request */
+    private ByteBuffer getDataToWrite() throws IOException {
         ByteBuffer dataBuffer;
         try {
             dataBuffer = getData();
@@ -178,7 +244,6 @@ class WriteCtx {
             throw new IOException("Can't get WriteCtx.data");
         }
 
-        byte[] data = dataBuffer.array();
         int position = dataBuffer.position();
         int limit = dataBuffer.limit();
         Preconditions.checkState(limit - position == count);
@@ -190,9 +255,35 @@ class WriteCtx {
                         + toString());
             }
         }
+        return dataBuffer;
+    }
+
+    /**
+     * Write the data of contiguous writes, in offset order, to the stream as
+     * one write.
+     */
+    static void writeData(DataOutputStream fos, List<WriteCtx> writes)
+            throws IOException {
+        Preconditions.checkState(fos != null);
+        ByteBuffer[] buffers = new ByteBuffer[writes.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            WriteCtx w = writes.get(i);
+            Preconditions.checkState(i == 0 || w.getOffset()
+                    == writes.get(i - 1).getOffset() + writes.get(i - 1).getCount());
+            buffers[i] = w.getDataToWrite();
+        }
 
-        // Now write data
-//        fos.write(data, position, count);
+        // Now write data, the stream is only flushed once all the buffers are in
+//        for (ByteBuffer dataBuffer : buffers) {
+//            if (dataBuffer.hasArray()) {
+//                fos.write(dataBuffer.array(), dataBuffer.arrayOffset()
+//                        + dataBuffer.position(), dataBuffer.remaining());
+//            } else {
+//                // A pooled direct buffer or a dumped write
+//                Channels.newChannel(fos).write(dataBuffer.duplicate());
+//            }
+//        }
+//        fos.flush();
     }
 
     Channel getChannel() {
@@ -214,17 +305,34 @@ class WriteCtx {
     WriteCtx(FileHandle handle, long offset, int count, int originalCount,
             Nfs3Constant.WriteStableHow stableHow, ByteBuffer data, Channel channel, int xid,
             boolean replied, DataState dataState) {
+        this(handle, offset, count, originalCount, stableHow, data, channel, xid,
+                replied, dataState, null, null);
+    }
+
+    /**
+     * @param pool   if not null, the data is copied into a buffer of the pool, so that the request buffer can be
+     *               garbage collected
+     * @param budget if not null, accounts for the data while it is in memory
+     */
+    WriteCtx(FileHandle handle, long offset, int count, int originalCount,
+            Nfs3Constant.WriteStableHow stableHow, ByteBuffer data, Channel channel, int xid,
+            boolean replied, DataState dataState, WriteBufferPool pool,
+            WriteMemoryBudget budget) {
         this.handle = handle;
         this.offset = offset;
         this.count = count;
         this.originalCount = originalCount;
         this.stableHow = stableHow;
-        this.data = data;
+        this.pool = pool;
+        this.budget = budget;
+        this.data = pool == null ? data : copyToPool(data);
+        if (budget != null) {
+            budget.addBuffered(count);
+        }
         this.channel = channel;
         this.xid = xid;
         this.replied = replied;
         this.dataState = dataState;
-        raf = null;
         this.startTime = System.nanoTime();
     }
 
@@ -21,6 +21,7 @@ import com.buaa.cfs.constant.CommonConfigurationKeysPublic;
 import com.buaa.cfs.nfs3.OpenFileCtx.COMMIT_STATUS;
 import com.buaa.cfs.constant.Nfs3Constant;
 import com.buaa.cfs.exception.AlreadyBeingCreatedException;
+import com.buaa.cfs.fs.HdfsFileStatus;
 import com.buaa.cfs.nfs3.request.WRITE3Request;
 import com.buaa.cfs.nfs3.response.COMMIT3Response;
 import com.buaa.cfs.nfs3.response.WRITE3Response;
@@ -32,6 +33,8 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.channel.Channel;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.rmi.RemoteException;
 
 /**
@@ -56,6 +59,12 @@ public class WriteManager {
     private long streamTimeout;
 
     private final OpenFileCtxCache fileContextCache;
+    private final Nfs3AttrCache attrCache;
+    private final WriteBufferPool writeBufferPool;
+    private final WriteMemoryBudget writeMemoryBudget;
+    /** Shared by the open files to dump to, null if dumping is disabled */
+    private final SpillLog spillLog;
+    private final GroupCommitter groupCommitter;
 
     static public class MultipleCachedStreamException extends IOException {
         private static final long serialVersionUID = 1L;
@@ -86,6 +95,25 @@ public class WriteManager {
                 NfsConfigKeys.DFS_NFS_MAX_OPEN_FILES_DEFAULT);
         LOG.info("Maximum open streams is " + maxStreams);
         this.fileContextCache = new OpenFileCtxCache(config, streamTimeout);
+        this.attrCache = new Nfs3AttrCache(config);
+        this.writeBufferPool = new WriteBufferPool(config);
+        this.writeMemoryBudget = new WriteMemoryBudget(config);
+        if (config.getBoolean(NfsConfigKeys.DFS_NFS_FILE_DUMP_KEY,
+                NfsConfigKeys.DFS_NFS_FILE_DUMP_DEFAULT)) {
+            this.spillLog = new SpillLog(config.get(
+                    NfsConfigKeys.DFS_NFS_FILE_DUMP_DIR_KEY,
+                    NfsConfigKeys.DFS_NFS_FILE_DUMP_DIR_DEFAULT), config);
+        } else {
+            this.spillLog = null;
+        }
+        this.groupCommitter = new GroupCommitter(config,
+                new GroupCommitter.Responder() {
+                    @Override
+                    public void respond(DFSClient dfsClient, FileHandle handle,
+                            int status, List<GroupCommitter.Request> requests) {
+                        sendCommitResponses(dfsClient, handle, status, requests);
+                    }
+                });
     }
 
     void startAsyncDataService() {
@@ -93,7 +121,8 @@ public class WriteManager {
             return;
         }
         fileContextCache.start();
-        this.asyncDataService = new AsyncDataService();
+        this.asyncDataService = new AsyncDataService(config);
+        groupCommitter.start(asyncDataService);
         asyncDataServiceStarted = true;
     }
 
@@ -102,15 +131,18 @@ public class WriteManager {
             return;
         }
         asyncDataServiceStarted = false;
+        groupCommitter.shutdown();
         asyncDataService.shutdown();
         fileContextCache.shutdown();
+        if (spillLog != null) {
+            spillLog.close();
+        }
     }
 
     void handleWrite(DFSClient dfsClient, WRITE3Request request, Channel channel,
             int xid, Nfs3FileAttributes preOpAttr) throws IOException {
         int count = request.getCount();
-        byte[] data = request.getData().array();
-        if (data.length < count) {
+        if (request.getData().remaining() < count) {
             WRITE3Response response = new WRITE3Response(Nfs3Status.NFS3ERR_INVAL);
             Nfs3Utils.writeChannel(channel, response.serialize(
                     new XDR(), xid, new VerifierNone()), xid);
@@ -128,6 +160,8 @@ public class WriteManager {
         if (openFileCtx == null) {
             LOG.info("No opened stream for fileId: " + fileHandle.getFileId());
 
+            // Opening the file for append changes it on the backend
+            attrCache.invalidate(fileHandle);
             String fileIdPath = Nfs3Utils.getFileIdPath(fileHandle.getFileId());
 //            HdfsDataOutputStream fos = null;
             Nfs3FileAttributes latestAttr = null;
@@ -166,10 +200,9 @@ public class WriteManager {
             }
 
             // Add open stream
-            String writeDumpDir = config.get(NfsConfigKeys.DFS_NFS_FILE_DUMP_DIR_KEY,
-                    NfsConfigKeys.DFS_NFS_FILE_DUMP_DIR_DEFAULT);
-//            openFileCtx = new OpenFileCtx(fos, latestAttr, writeDumpDir + "/"
-//                    + fileHandle.getFileId(), dfsClient, iug, aixCompatMode, config);
+//            openFileCtx = new OpenFileCtx(fos, latestAttr, spillLog, dfsClient,
+//                    iug, aixCompatMode, config, attrCache, writeBufferPool,
+//                    writeMemoryBudget);
 //
             if (!addOpenFileStream(fileHandle, openFileCtx)) {
                 LOG.info("Can't add new stream. Close it. Tell client to retry.");
@@ -189,12 +222,31 @@ public class WriteManager {
             }
         }
 
+        // Over the memory limit, only accept the writes that can be written
+        // back right away, the client retries the others later
+        if (writeMemoryBudget.shouldReject(
+                request.getOffset() <= openFileCtx.getNextOffset())) {
+            LOG.info("Write memory is over the limit, tell client to retry: "
+                    + request);
+            WccData fileWcc = new WccData(preOpAttr.getWccAttr(), preOpAttr);
+            WRITE3Response response = new WRITE3Response(Nfs3Status.NFS3ERR_JUKEBOX,
+                    fileWcc, 0, request.getStableHow(), Nfs3Constant.WRITE_COMMIT_VERF);
+            Nfs3Utils.writeChannel(channel,
+                    response.serialize(new XDR(), xid, new VerifierNone()), xid);
+            return;
+        }
+
         // Add write into the async job queue
         openFileCtx.receivedNewWrite(dfsClient, request, channel, xid,
                 asyncDataService, iug);
         return;
     }
 
+    /** @return the open stream context of the file, or null */
+    OpenFileCtx getOpenFileCtx(FileHandle fileHandle) {
+        return fileContextCache.get(fileHandle);
+    }
+
     // Do a possible commit before read request in case there is buffered data
     // inside DFSClient which has been flushed but not synced.
     int commitBeforeRead(DFSClient dfsClient, FileHandle fileHandle,
@@ -259,8 +311,13 @@ public class WriteManager {
 
         } else {
             COMMIT_STATUS ret = openFileCtx.checkCommit(dfsClient, commitOffset,
-                    channel, xid, preOpAttr, false);
+                    channel, xid, preOpAttr, false, false);
             switch (ret) {
+                case COMMIT_DO_SYNC:
+                    // The data is flushed, sync along with the other commits
+                    groupCommitter.submit(new GroupCommitter.Request(openFileCtx,
+                            dfsClient, fileHandle, channel, xid, preOpAttr, startTime));
+                    return;
                 case COMMIT_FINISHED:
                 case COMMIT_INACTIVE_CTX:
                     status = Nfs3Status.NFS3_OK;
@@ -285,19 +342,34 @@ public class WriteManager {
             }
         }
 
-        // Send out the response
+        List<GroupCommitter.Request> requests = new ArrayList<GroupCommitter.Request>(1);
+        requests.add(new GroupCommitter.Request(openFileCtx, dfsClient, fileHandle,
+                channel, xid, preOpAttr, startTime));
+        sendCommitResponses(dfsClient, fileHandle, status, requests);
+    }
+
+    /** Reply to commits of a file, its post-op attributes are fetched once */
+    private void sendCommitResponses(DFSClient dfsClient, FileHandle fileHandle,
+            int status, List<GroupCommitter.Request> requests) {
+        long fileId = requests.get(0).getPreOpAttr().getFileId();
         Nfs3FileAttributes postOpAttr = null;
         try {
-            postOpAttr = getFileAttr(dfsClient, new FileHandle(preOpAttr.getFileId()), iug);
+            // The synced data has changed the file on the backend
+            attrCache.invalidate(fileHandle);
+            postOpAttr = getFileAttr(dfsClient, new FileHandle(fileId), iug);
         } catch (IOException e1) {
-            LOG.info("Can't get postOpAttr for fileId: " + preOpAttr.getFileId(), e1);
+            LOG.info("Can't get postOpAttr for fileId: " + fileId, e1);
+        }
+        for (GroupCommitter.Request r : requests) {
+            WccData fileWcc = new WccData(Nfs3Utils.getWccAttr(r.getPreOpAttr()),
+                    postOpAttr);
+            COMMIT3Response response = new COMMIT3Response(status, fileWcc,
+                    Nfs3Constant.WRITE_COMMIT_VERF);
+            RpcProgramNfs3.metrics.addCommit(Nfs3Utils.getElapsedTime(r.getStartTime()));
+            Nfs3Utils.writeChannelCommit(r.getChannel(),
+                    response.serialize(new XDR(), r.getXid(), new VerifierNone()),
+                    r.getXid());
         }
-        WccData fileWcc = new WccData(Nfs3Utils.getWccAttr(preOpAttr), postOpAttr);
-        COMMIT3Response response = new COMMIT3Response(status, fileWcc,
-                Nfs3Constant.WRITE_COMMIT_VERF);
-//        RpcProgramNfs3.metrics.addCommit(Nfs3Utils.getElapsedTime(startTime));
-        Nfs3Utils.writeChannelCommit(channel,
-                response.serialize(new XDR(), xid, new VerifierNone()), xid);
     }
 
     /**
@@ -306,7 +378,7 @@ public class WriteManager {
     Nfs3FileAttributes getFileAttr(DFSClient client, FileHandle fileHandle,
             IdMappingServiceProvider iug) throws IOException {
         String fileIdPath = Nfs3Utils.getFileIdPath(fileHandle);
-        Nfs3FileAttributes attr = Nfs3Utils.getFileAttr(client, fileIdPath, iug);
+        Nfs3FileAttributes attr = attrCache.getFileAttr(client, fileIdPath, iug);
         if (attr != null) {
             OpenFileCtx openFileCtx = fileContextCache.get(fileHandle);
             if (openFileCtx != null) {
@@ -317,10 +389,33 @@ public class WriteManager {
         return attr;
     }
 
+    /**
+     * Get the attributes from a status the caller already has, e.g. from a
+     * directory listing, instead of asking the backend again.
+     *
+     * @param fresh true if the status was just fetched from the backend, the
+     *              attribute cache is then refreshed with it
+     */
+    Nfs3FileAttributes getFileAttr(HdfsFileStatus fs, boolean fresh) {
+        Nfs3FileAttributes attr = Nfs3Utils.getNfs3FileAttrFromFileStatus(fs, iug);
+        if (fresh) {
+            attrCache.put(attr);
+        }
+        if (attr.getType() == NfsFileType.NFSREG.toValue()) {
+            OpenFileCtx openFileCtx = fileContextCache.get(new FileHandle(attr
+                    .getFileId()));
+            if (openFileCtx != null) {
+                attr.setSize(openFileCtx.getNextOffset());
+                attr.setUsed(openFileCtx.getNextOffset());
+            }
+        }
+        return attr;
+    }
+
     Nfs3FileAttributes getFileAttr(DFSClient client, FileHandle dirHandle,
             String fileName) throws IOException {
         String fileIdPath = Nfs3Utils.getFileIdPath(dirHandle) + "/" + fileName;
-        Nfs3FileAttributes attr = Nfs3Utils.getFileAttr(client, fileIdPath, iug);
+        Nfs3FileAttributes attr = attrCache.getFileAttr(client, fileIdPath, iug);
 
         if ((attr != null) && (attr.getType() == NfsFileType.NFSREG.toValue())) {
             OpenFileCtx openFileCtx = fileContextCache.get(new FileHandle(attr
@@ -334,6 +429,31 @@ public class WriteManager {
         return attr;
     }
 
+    Nfs3AttrCache getAttrCache() {
+        return attrCache;
+    }
+
+    WriteBufferPool getWriteBufferPool() {
+        return writeBufferPool;
+    }
+
+    WriteMemoryBudget getWriteMemoryBudget() {
+        return writeMemoryBudget;
+    }
+
+    GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+
+    /** @return the spill log, null if dumping is disabled */
+    SpillLog getSpillLog() {
+        return spillLog;
+    }
+
+    AsyncDataService getAsyncDataService() {
+        return asyncDataService;
+    }
+
     @VisibleForTesting
     OpenFileCtxCache getOpenFileCtxCache() {
         return this.fileContextCache;
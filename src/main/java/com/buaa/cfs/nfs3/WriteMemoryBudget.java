@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements.  See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.buaa.cfs.nfs3;
+
+import com.buaa.cfs.conf.NfsConfigKeys;
+import com.buaa.cfs.conf.NfsConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gateway-wide accounting of the write data buffered in memory. Each
+ * {@link OpenFileCtx} dumps its non-sequential writes once they exceed a small
+ * per-file water mark, but with many files open the total can still be large.
+ * <p>
+ * When the non-sequential data of all the files crosses the spill threshold,
+ * the files holding the most of it, and among equal ones the least recently
+ * written, are asked to dump it all. Only the update that crosses it spills,
+ * the updates while it stays over don't sort the files again. When the buffered data, sequential
+ * included, exceeds the hard limit, new writes that can't be written back
+ * right away are refused with NFS3ERR_JUKEBOX until the memory drains.
+ */
+class WriteMemoryBudget {
+    private static final Log LOG = LogFactory.getLog(WriteMemoryBudget.class);
+
+    private final long spillBytes;
+    private final long maxBytes;
+    /** Data of the buffered writes held in memory */
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    /** Data of the non-sequential writes held in memory, which can be dumped */
+    private final AtomicLong nonSequentialBytes = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong rejectedWrites = new AtomicLong();
+    /** The files with non-sequential writes in memory */
+    private final Set<OpenFileCtx> files = Collections.newSetFromMap(
+            new ConcurrentHashMap<OpenFileCtx, Boolean>());
+    private final AtomicBoolean spilling = new AtomicBoolean();
+
+    WriteMemoryBudget(NfsConfiguration config) {
+        spillBytes = config.getLongBytes(
+                NfsConfigKeys.DFS_NFS_WRITE_MEMORY_SPILL_BYTES_KEY,
+                NfsConfigKeys.DFS_NFS_WRITE_MEMORY_SPILL_BYTES_DEFAULT);
+        maxBytes = config.getLongBytes(
+                NfsConfigKeys.DFS_NFS_WRITE_MEMORY_MAX_BYTES_KEY,
+                NfsConfigKeys.DFS_NFS_WRITE_MEMORY_MAX_BYTES_DEFAULT);
+        LOG.info("Write memory spill threshold is " + spillBytes
+                + ", hard limit is " + maxBytes);
+    }
+
+    /** Account for write data loaded into or freed from memory */
+    void addBuffered(long bytes) {
+        bufferedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Account for the change of the non-sequential writes in memory of a file,
+     * and spill if this brings the gateway over the threshold.
+     */
+    void addNonSequential(OpenFileCtx file, long bytes) {
+        if (bytes > 0) {
+            files.add(file);
+        }
+        long total = nonSequentialBytes.addAndGet(bytes);
+        if (spillBytes > 0 && bytes > 0 && total > spillBytes
+                && total - bytes <= spillBytes) {
+            spill();
+        }
+    }
+
+    /** Forget a file that has been closed */
+    void remove(OpenFileCtx file) {
+        files.remove(file);
+    }
+
+    /**
+     * @return true if a new write must be refused. A write that can be written
+     * back right away is always accepted, refusing it would hold the memory
+     * of the writes after it longer.
+     */
+    boolean shouldReject(boolean sequential) {
+        if (sequential || maxBytes <= 0 || bufferedBytes.get() < maxBytes) {
+            return false;
+        }
+        rejectedWrites.incrementAndGet();
+        return true;
+    }
+
+    private void spill() {
+        // One caller picks the files, the others go on, the dumps are async
+        if (!spilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long excess = nonSequentialBytes.get() - spillBytes;
+            if (excess <= 0) {
+                return;
+            }
+            // Snapshot the sizes, they keep changing while sorting
+            OpenFileCtx[] ctxs = files.toArray(new OpenFileCtx[0]);
+            long[][] order = new long[ctxs.length][];
+            for (int i = 0; i < ctxs.length; i++) {
+                order[i] = new long[]{ctxs[i].getNonSequentialWriteInMemory(),
+                        ctxs[i].getLastAccessTime(), i};
+            }
+            Arrays.sort(order, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    // Largest first, then least recently written
+                    if (a[0] != b[0]) {
+                        return a[0] > b[0] ? -1 : 1;
+                    }
+                    return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+                }
+            });
+            for (long[] o : order) {
+                if (excess <= 0 || o[0] == 0) {
+                    break;
+                }
+                OpenFileCtx ctx = ctxs[(int) o[2]];
+                if (ctx.requestDump()) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Spill " + o[0] + " bytes of fileId: "
+                                + ctx.getLatestAttr().getFileId());
+                    }
+                    spills.incrementAndGet();
+                    excess -= o[0];
+                }
+            }
+        } finally {
+            spilling.set(false);
+        }
+    }
+
+    long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    long getNonSequentialBytes() {
+        return nonSequentialBytes.get();
+    }
+
+    long getSpillBytes() {
+        return spillBytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Number of files asked to dump by the spill */
+    long getSpills() {
+        return spills.get();
+    }
+
+    /** Number of writes refused with NFS3ERR_JUKEBOX */
+    long getRejectedWrites() {
+        return rejectedWrites.get();
+    }
+}
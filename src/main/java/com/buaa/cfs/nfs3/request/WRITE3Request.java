@@ -33,7 +33,8 @@ public class WRITE3Request extends RequestWithHandle {
         long offset = xdr.readHyper();
         int count = xdr.readInt();
         Nfs3Constant.WriteStableHow stableHow = Nfs3Constant.WriteStableHow.fromValue(xdr.readInt());
-        ByteBuffer data = ByteBuffer.wrap(xdr.readFixedOpaque(xdr.readInt()));
+        // The data is a view of the request buffer, not a copy
+        ByteBuffer data = xdr.readFixedOpaqueBuffer(xdr.readInt());
         return new WRITE3Request(handle, offset, count, stableHow, data);
     }
 
@@ -77,7 +78,7 @@ public class WRITE3Request extends RequestWithHandle {
         xdr.writeInt(count);
         xdr.writeInt(stableHow.getValue());
         xdr.writeInt(count);
-        xdr.writeFixedOpaque(data.array(), count);
+        xdr.writeFixedOpaque(data, count);
     }
 
     @Override
@@ -16,11 +16,20 @@ package com.buaa.cfs.nfs3.response;
 import com.buaa.cfs.common.oncrpc.RpcAcceptedReply;
 import com.buaa.cfs.common.oncrpc.XDR;
 import com.buaa.cfs.common.oncrpc.security.Verifier;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 /**
  * Base class for a NFSv3 response. This class and its subclasses contain the response from NFSv3 handlers.
  */
 public class NFS3Response {
+    /** Accepted reply header with an empty verifier, followed by the status. */
+    protected static final int REPLY_HEADER_SIZE = 28;
+    /** Encoded size of a post_op_attr carrying attributes. */
+    protected static final int POST_OP_ATTR_SIZE = 88;
+    /** Large enough for replies made up of handles and attributes only. */
+    private static final int DEFAULT_SIZE_HINT = 512;
+
     protected int status;
 
     public NFS3Response(int status) {
@@ -44,4 +53,31 @@ public class NFS3Response {
         out.writeInt(this.getStatus());
         return out;
     }
+
+    /**
+     * Estimated number of bytes {@link #serializeToChannelBuffer} writes into the
+     * XDR, used to size the reply buffer up front so it doesn't have to grow.
+     */
+    public int getSerializedSizeHint() {
+        return DEFAULT_SIZE_HINT;
+    }
+
+    /**
+     * Serialize the response and return the ChannelBuffer to be sent. The
+     * default implementation wraps the content of out. Responses carrying bulk
+     * data can override it to append the data without copying it into out.
+     */
+    public ChannelBuffer serializeToChannelBuffer(XDR out, int xid,
+            Verifier verifier) {
+        serialize(out, xid, verifier);
+        return ChannelBuffers.wrappedBuffer(out.asReadOnlyWrap().buffer());
+    }
+
+    /**
+     * Called once the buffer from {@link #serializeToChannelBuffer} has been
+     * written out, to release what the response holds, e.g. a pooled buffer of
+     * read data. Nothing by default.
+     */
+    public void release() {
+    }
 }
@@ -16,6 +16,9 @@ import com.buaa.cfs.nfs3.Nfs3FileAttributes;
 import com.buaa.cfs.nfs3.Nfs3Status;
 import com.buaa.cfs.common.oncrpc.XDR;
 import com.buaa.cfs.common.oncrpc.security.Verifier;
+import com.buaa.cfs.io.ByteBufferPool;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.nio.ByteBuffer;
 
@@ -27,6 +30,8 @@ public class READ3Response extends NFS3Response {
     private final int count; // The real bytes of read data
     private final boolean eof;
     private final ByteBuffer data;
+    /** Pool the data buffer goes back to once sent, null if not pooled */
+    private final ByteBufferPool dataPool;
 
     public READ3Response(int status) {
         this(status, new Nfs3FileAttributes(), 0, false, null);
@@ -34,11 +39,21 @@ public class READ3Response extends NFS3Response {
 
     public READ3Response(int status, Nfs3FileAttributes postOpAttr, int count,
             boolean eof, ByteBuffer data) {
+        this(status, postOpAttr, count, eof, data, null);
+    }
+
+    /**
+     * @param dataPool the pool data was taken from. The data is returned to it
+     *                 by {@link #release()} once the reply has been sent.
+     */
+    public READ3Response(int status, Nfs3FileAttributes postOpAttr, int count,
+            boolean eof, ByteBuffer data, ByteBufferPool dataPool) {
         super(status);
         this.postOpAttr = postOpAttr;
         this.count = count;
         this.eof = eof;
         this.data = data;
+        this.dataPool = dataPool;
     }
 
     public Nfs3FileAttributes getPostOpAttr() {
@@ -79,6 +94,46 @@ public class READ3Response extends NFS3Response {
 
     @Override
     public XDR serialize(XDR out, int xid, Verifier verifier) {
+        serializeHeader(out, xid, verifier);
+        if (getStatus() == Nfs3Status.NFS3_OK) {
+            out.writeFixedOpaque(data, count);
+        }
+        return out;
+    }
+
+    /**
+     * Everything up to the opaque data. The data itself is not part of the
+     * hint since {@link #serializeToChannelBuffer} doesn't copy it.
+     */
+    @Override
+    public int getSerializedSizeHint() {
+        return REPLY_HEADER_SIZE + POST_OP_ATTR_SIZE + 12;
+    }
+
+    /**
+     * Only the header goes into out, the read data is appended to it as a
+     * wrapped buffer.
+     */
+    @Override
+    public ChannelBuffer serializeToChannelBuffer(XDR out, int xid,
+            Verifier verifier) {
+        if (getStatus() != Nfs3Status.NFS3_OK) {
+            return super.serializeToChannelBuffer(out, xid, verifier);
+        }
+        serializeHeader(out, xid, verifier);
+        return ChannelBuffers.wrappedBuffer(
+                ChannelBuffers.wrappedBuffer(out.asReadOnlyWrap().buffer()),
+                XDR.wrapFixedOpaque(data, count));
+    }
+
+    @Override
+    public void release() {
+        if (dataPool != null) {
+            dataPool.putBuffer(data);
+        }
+    }
+
+    private void serializeHeader(XDR out, int xid, Verifier verifier) {
         super.serialize(out, xid, verifier);
         out.writeBoolean(true); // Attribute follows
         postOpAttr.serialize(out);
@@ -87,8 +142,6 @@ public class READ3Response extends NFS3Response {
             out.writeInt(count);
             out.writeBoolean(eof);
             out.writeInt(count);
-            out.writeFixedOpaque(data.array(), count);
         }
-        return out;
     }
 }
@@ -134,6 +134,18 @@ public class READDIR3Response extends NFS3Response {
         return new READDIR3Response(status, postOpDirAttr, cookieVerf, dirList);
     }
 
+    @Override
+    public int getSerializedSizeHint() {
+        int size = REPLY_HEADER_SIZE + POST_OP_ATTR_SIZE + 16;
+        if (getStatus() == Nfs3Status.NFS3_OK) {
+            for (Entry3 e : dirList.entries) {
+                // value follows, fileid, name length, cookie and name padding
+                size += 28 + e.getName().length();
+            }
+        }
+        return size;
+    }
+
     @Override
     public XDR serialize(XDR xdr, int xid, Verifier verifier) {
         super.serialize(xdr, xid, verifier);
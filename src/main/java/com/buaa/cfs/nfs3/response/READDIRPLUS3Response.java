@@ -133,6 +133,18 @@ public class READDIRPLUS3Response extends NFS3Response {
         return new READDIRPLUS3Response(status, postOpDirAttr, cookieVerf, dirList);
     }
 
+    @Override
+    public int getSerializedSizeHint() {
+        int size = REPLY_HEADER_SIZE + POST_OP_ATTR_SIZE + 16;
+        if (getStatus() == Nfs3Status.NFS3_OK) {
+            for (EntryPlus3 e : dirListPlus.getEntries()) {
+                // Same as READDIR3 plus name attributes and a 32 byte handle
+                size += 28 + e.name.length() + POST_OP_ATTR_SIZE + 40;
+            }
+        }
+        return size;
+    }
+
     @Override
     public XDR serialize(XDR out, int xid, Verifier verifier) {
         super.serialize(out, xid, verifier);